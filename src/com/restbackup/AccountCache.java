@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the details of recently looked up backup accounts, so that
+ * getBackupAccount() does not send a request each time. Entries expire after
+ * the time-to-live. When the estimated size of all entries passes the limit,
+ * the least recently used ones are dropped. deleteBackupAccount() removes the
+ * deleted account.
+ * 
+ * The cache is disabled until setTtl() is called with a positive value.
+ * 
+ * @see ManagementApiCaller#getAccountCache()
+ */
+public class AccountCache {
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+	/** Estimated bytes of the objects of an entry, apart from its strings */
+	private static final int ENTRY_OVERHEAD = 200;
+
+	private static class CachedAccount {
+		final BackupAccountDetails details;
+		final long bytes;
+		final long loadedNanos;
+
+		CachedAccount(BackupAccountDetails details, long bytes, long loadedNanos) {
+			this.details = details;
+			this.bytes = bytes;
+			this.loadedNanos = loadedNanos;
+		}
+	}
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	/** In order of use, least recent first */
+	private final LinkedHashMap<String, CachedAccount> _entries =
+			new LinkedHashMap<String, CachedAccount>(16, 0.75f, true);
+	private volatile long _ttlNanos = 0;
+	private long _maxBytes = DEFAULT_MAX_BYTES;
+	private long _bytes = 0;
+
+	/**
+	 * @return true if account details are cached
+	 */
+	public boolean isEnabled() {
+		return _ttlNanos > 0;
+	}
+
+	/**
+	 * Sets how long account details are served before they are looked up
+	 * again
+	 * 
+	 * @param ttl
+	 *            the time-to-live, or 0 to disable the cache and drop all
+	 *            entries
+	 * @param unit
+	 *            the unit of ttl
+	 */
+	public void setTtl(long ttl, TimeUnit unit) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("ttl must be >= 0");
+		}
+		_ttlNanos = unit.toNanos(ttl);
+		if (ttl == 0) {
+			invalidateAll();
+		}
+	}
+
+	/**
+	 * Sets the limit on the estimated size of all entries. Drops the least
+	 * recently used entries until they fit.
+	 * 
+	 * @param maxBytes
+	 *            the limit in bytes, must be > 0
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be > 0");
+		}
+		_lock.lock();
+		try {
+			_maxBytes = maxBytes;
+			evict();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of accounts in the cache
+	 */
+	public int size() {
+		_lock.lock();
+		try {
+			return _entries.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the estimated size of all entries, in bytes
+	 */
+	public long getBytes() {
+		_lock.lock();
+		try {
+			return _bytes;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the cached details of the account, or null if they are missing
+	 *         or expired or the cache is disabled
+	 */
+	public BackupAccountDetails get(String accountId) {
+		if (!isEnabled()) {
+			return null;
+		}
+		_lock.lock();
+		try {
+			CachedAccount cached = _entries.get(accountId);
+			if (cached == null) {
+				return null;
+			}
+			if (System.nanoTime() - cached.loadedNanos >= _ttlNanos) {
+				remove(accountId);
+				return null;
+			}
+			return cached.details;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds or replaces the details of an account. Does nothing while the
+	 * cache is disabled.
+	 */
+	public void put(BackupAccountDetails details) {
+		if (!isEnabled()) {
+			return;
+		}
+		long bytes = estimateBytes(details);
+		_lock.lock();
+		try {
+			remove(details.getAccountId());
+			if (bytes > _maxBytes) {
+				return;
+			}
+			_entries.put(details.getAccountId(), new CachedAccount(details, bytes, System
+					.nanoTime()));
+			_bytes += bytes;
+			evict();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the details of one account
+	 */
+	public void invalidate(String accountId) {
+		_lock.lock();
+		try {
+			remove(accountId);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops all entries
+	 */
+	public void invalidateAll() {
+		_lock.lock();
+		try {
+			_entries.clear();
+			_bytes = 0;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void remove(String accountId) {
+		CachedAccount removed = _entries.remove(accountId);
+		if (removed != null) {
+			_bytes -= removed.bytes;
+		}
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, CachedAccount>> it = _entries.entrySet().iterator();
+		while (_bytes > _maxBytes && it.hasNext()) {
+			_bytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return the approximate heap used by the details and the cache entry,
+	 *         counting two bytes per character of each string
+	 */
+	static long estimateBytes(BackupAccountDetails details) {
+		long chars = length(details.getAccountId()) + length(details.getDescription())
+				+ length(details.getAccessUrl());
+		return ENTRY_OVERHEAD + 2 * chars;
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of data shared by any number of threads. Works like a token
+ * bucket holding up to burstMillis worth of bytes, implemented as the generic
+ * cell rate algorithm: a single atomic timestamp records when the bytes sent
+ * so far will have been paid for. Threads never block each other; a thread
+ * that exceeds the rate sleeps for its own debt. The rate may be changed at
+ * any time and applies to transfers already in progress.
+ * 
+ * @see HttpCaller#getUploadLimiter()
+ * @see HttpCaller#getDownloadLimiter()
+ */
+public class BandwidthLimiter {
+	public static final long DEFAULT_BURST_MILLIS = 250;
+	/** Transfers are throttled in pieces of at most this many bytes */
+	static final int MAX_CHUNK = 256 * 1024;
+
+	private final AtomicLong _paidUntilNanos = new AtomicLong(System.nanoTime());
+	private volatile long _bytesPerSecond = 0;
+	private volatile long _burstNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BURST_MILLIS);
+
+	/**
+	 * Makes a limiter with no limit
+	 */
+	public BandwidthLimiter() {
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            the maximum average rate, or 0 for no limit
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		setBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * @return the maximum average rate, or 0 if there is no limit
+	 */
+	public long getBytesPerSecond() {
+		return _bytesPerSecond;
+	}
+
+	/**
+	 * Changes the rate. Transfers in progress slow down or speed up with their
+	 * next piece of data.
+	 * 
+	 * @param bytesPerSecond
+	 *            the maximum average rate, or 0 for no limit
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("bytesPerSecond must be >= 0");
+		}
+		_bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @param burstMillis
+	 *            how many milliseconds of data at the full rate may be sent at
+	 *            once after a pause
+	 */
+	public void setBurstMillis(long burstMillis) {
+		if (burstMillis < 0) {
+			throw new IllegalArgumentException("burstMillis must be >= 0");
+		}
+		_burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+	}
+
+	/**
+	 * @return true if there is no limit
+	 */
+	public boolean isUnlimited() {
+		return _bytesPerSecond == 0;
+	}
+
+	/**
+	 * Waits until the bytes may be sent without exceeding the rate
+	 * 
+	 * @param bytes
+	 *            the number of bytes about to be sent
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		long rate = _bytesPerSecond;
+		if (rate == 0 || bytes <= 0) {
+			return;
+		}
+		long costNanos = (long) (bytes * 1e9 / rate);
+		long burstNanos = _burstNanos;
+		long now;
+		long paidUntil;
+		while (true) {
+			now = System.nanoTime();
+			long previous = _paidUntilNanos.get();
+			// unused time beyond the burst allowance is forfeited
+			paidUntil = Math.max(previous, now - burstNanos) + costNanos;
+			if (_paidUntilNanos.compareAndSet(previous, paidUntil)) {
+				break;
+			}
+		}
+		long waitNanos = paidUntil - now;
+		while (waitNanos > 0) {
+			LockSupport.parkNanos(this, waitNanos);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+			waitNanos = paidUntil - System.nanoTime();
+		}
+	}
+}
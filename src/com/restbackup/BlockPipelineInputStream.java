@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads blocks from a source, transforms them on a thread pool and returns
+ * the results in their original order. Keeps a bounded number of blocks in
+ * flight so memory use does not depend on the length of the source.
+ * 
+ * @see CompressingEntity
+ */
+class BlockPipelineInputStream extends InputStream {
+	/**
+	 * Supplies the blocks to transform
+	 */
+	interface Source {
+		/**
+		 * @return the next block, or null at the end of the source
+		 */
+		byte[] next() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	/**
+	 * Transforms one block. Called concurrently from the pool threads.
+	 */
+	interface Transform {
+		/**
+		 * @param block
+		 *            the data of the block
+		 * @param index
+		 *            the position of the block in the source, starting at 0
+		 * @param last
+		 *            true if this is the final block of the source
+		 * @return the transformed block
+		 */
+		byte[] apply(byte[] block, long index, boolean last) throws IOException;
+	}
+
+	private final Source _source;
+	private final Transform _transform;
+	private final ExecutorService _executor;
+	private final int _maxInFlight;
+	private final ArrayDeque<Future<byte[]>> _inFlight = new ArrayDeque<Future<byte[]>>();
+	private byte[] _lookahead = null;
+	private boolean _started = false;
+	private boolean _sourceDone = false;
+	private long _index = 0;
+	private byte[] _current = null;
+	private int _currentPosition = 0;
+
+	/**
+	 * @param source
+	 *            supplies the blocks
+	 * @param transform
+	 *            the work to perform on each block
+	 * @param executor
+	 *            the pool that runs the transform
+	 * @param maxInFlight
+	 *            the maximum number of blocks read from the source but not yet
+	 *            returned by this stream
+	 */
+	BlockPipelineInputStream(Source source, Transform transform, ExecutorService executor,
+			int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be > 0");
+		}
+		_source = source;
+		_transform = transform;
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Holds the default pool, which the class loader creates on first use
+	 * without a lock
+	 */
+	private static class DefaultExecutorHolder {
+		static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+				getDefaultParallelism(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "restbackup-block-pipeline");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Gets the pool shared by all pipelines that do not supply their own. It
+	 * has one daemon thread per processor.
+	 */
+	static ExecutorService getDefaultExecutor() {
+		return DefaultExecutorHolder.EXECUTOR;
+	}
+
+	/**
+	 * @return the number of threads in the default pool
+	 */
+	static int getDefaultParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Makes a source that splits a stream into blocks of a fixed size. Only
+	 * the last block may be shorter.
+	 * 
+	 * @param emitEmptyBlock
+	 *            if true, an empty stream yields one empty block instead of
+	 *            none
+	 */
+	static Source fixedSizeBlocks(final InputStream input, final int blockSize,
+			final boolean emitEmptyBlock) {
+		return new Source() {
+			private boolean _first = true;
+
+			@Override
+			public byte[] next() throws IOException {
+				byte[] block = new byte[blockSize];
+				int length = 0;
+				while (length < blockSize) {
+					int bytesRead = input.read(block, length, blockSize - length);
+					if (bytesRead == -1) {
+						break;
+					}
+					length += bytesRead;
+				}
+				boolean first = _first;
+				_first = false;
+				if (length == 0 && !(first && emitEmptyBlock)) {
+					return null;
+				}
+				return length == blockSize ? block : Arrays.copyOf(block, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				input.close();
+			}
+		};
+	}
+
+	/**
+	 * Reads blocks from the source and submits them until the limit of blocks
+	 * in flight is reached
+	 */
+	private void fill() throws IOException {
+		if (!_started) {
+			_lookahead = _source.next();
+			_started = true;
+		}
+		while (!_sourceDone && _inFlight.size() < _maxInFlight) {
+			if (_lookahead == null) {
+				_sourceDone = true;
+				break;
+			}
+			final byte[] block = _lookahead;
+			final long index = _index++;
+			_lookahead = _source.next();
+			final boolean last = _lookahead == null;
+			_inFlight.add(_executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return _transform.apply(block, index, last);
+				}
+			}));
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (_current == null || _currentPosition == _current.length) {
+			fill();
+			Future<byte[]> future = _inFlight.poll();
+			if (future == null) {
+				return -1;
+			}
+			try {
+				_current = future.get();
+				_currentPosition = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while transforming block");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Error transforming block", e.getCause());
+			}
+		}
+		int count = Math.min(len, _current.length - _currentPosition);
+		System.arraycopy(_current, _currentPosition, b, off, count);
+		_currentPosition += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> future : _inFlight) {
+			future.cancel(true);
+		}
+		_inFlight.clear();
+		_sourceDone = true;
+		_source.close();
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the outcome of an operation on many files. A failure of one file
+ * does not stop the others. Safe to update from several threads.
+ * 
+ * @see BackupApiCaller#backupTree(java.nio.file.Path, String)
+ */
+public class BulkResult {
+	private final ConcurrentLinkedQueue<String> _succeeded = new ConcurrentLinkedQueue<String>();
+	private final ConcurrentHashMap<String, Exception> _failures;
+	private final AtomicLong _bytes = new AtomicLong();
+
+	public BulkResult() {
+		_failures = new ConcurrentHashMap<String, Exception>();
+	}
+
+	void addSuccess(String name, long bytes) {
+		_succeeded.add(name);
+		_bytes.addAndGet(bytes);
+	}
+
+	void addFailure(String name, Exception e) {
+		_failures.put(name, e);
+	}
+
+	/**
+	 * @return the files that succeeded, in the order they finished
+	 */
+	public List<String> getSucceeded() {
+		return Collections.unmodifiableList(new ArrayList<String>(_succeeded));
+	}
+
+	/**
+	 * @return the files that failed and the reason for each, sorted by name
+	 */
+	public Map<String, Exception> getFailures() {
+		return Collections.unmodifiableMap(new TreeMap<String, Exception>(_failures));
+	}
+
+	/**
+	 * @return the number of bytes transferred by the files that succeeded
+	 */
+	public long getBytes() {
+		return _bytes.get();
+	}
+
+	/**
+	 * @return true if no file failed
+	 */
+	public boolean isSuccess() {
+		return _failures.isEmpty();
+	}
+
+	/**
+	 * @return a string like "BulkResult(succeeded=10,failed=1,bytes=1947648)"
+	 */
+	public String toString() {
+		return String.format("BulkResult(succeeded=%d,failed=%d,bytes=%d)", _succeeded.size(),
+				_failures.size(), _bytes.get());
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Reads single files out of a bundle uploaded by BundleWriter, without
+ * downloading the whole bundle. A bundle holds the data of its members one
+ * after another, then a JSON index of the members, then a 16 byte footer with
+ * the length of the index and a magic number. Opening a bundle reads the
+ * footer and the index with range requests; each member is another range
+ * request. Instantiate like this:
+ * 
+ * <pre>
+ * Bundle bundle = Bundle.open(backup_api, bundleUri);
+ * HttpEntity entity = bundle.get(&quot;etc/hosts&quot;);
+ * </pre>
+ * 
+ * @see BundleWriter
+ */
+public class Bundle {
+	static final byte[] MAGIC = { 'R', 'B', 'B', 'U', 'N', 'D', 'L', '1' };
+	static final int FOOTER_LENGTH = 8 + MAGIC.length;
+
+	/**
+	 * Describes one member of a bundle
+	 */
+	public static class Member {
+		public String name = null;
+		public long offset = -1;
+		public long size = -1;
+
+		public Member() {
+		};
+
+		public Member(String name, long offset, long size) {
+			this.name = name;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The JSON index stored near the end of a bundle
+	 */
+	static class Index {
+		@SerializedName("restbackup-bundle")
+		int _version = 1;
+		@SerializedName("members")
+		List<Member> _members = new ArrayList<Member>();
+	}
+
+	private final BackupApiCaller _caller;
+	private final String _uri;
+	private final Map<String, Member> _members = new LinkedHashMap<String, Member>();
+
+	private Bundle(BackupApiCaller caller, String uri, Index index, long dataLength)
+			throws RestBackupException {
+		_caller = caller;
+		_uri = uri;
+		for (Member member : index._members) {
+			if (member.name == null || member.offset < 0 || member.size < 0
+					|| member.offset + member.size > dataLength) {
+				throw new RestBackupException("Malformed bundle index in " + uri);
+			}
+			_members.put(member.name, member);
+		}
+	}
+
+	/**
+	 * Reads the index of a bundle with two range requests
+	 * 
+	 * @param caller
+	 *            the backup account holding the bundle
+	 * @param uri
+	 *            the location of the bundle
+	 * @throws ResourceNotFoundException
+	 *             if there is no bundle at the uri
+	 * @throws RestBackupException
+	 *             if the file is not a bundle, or on other errors
+	 */
+	public static Bundle open(BackupApiCaller caller, String uri)
+			throws ResourceNotFoundException, UnauthorizedException, RestBackupException {
+		long[] size = new long[1];
+		byte[] footer = readFooter(caller, uri, size);
+		ByteBuffer buffer = ByteBuffer.wrap(footer);
+		long indexLength = buffer.getLong();
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || indexLength < 2
+				|| indexLength > size[0] - FOOTER_LENGTH || indexLength > Integer.MAX_VALUE) {
+			throw new RestBackupException("File " + uri + " is not a bundle");
+		}
+		long dataLength = size[0] - FOOTER_LENGTH - indexLength;
+		byte[] json = readRange(caller, uri, dataLength, indexLength);
+		try {
+			Index index = new Gson().fromJson(new String(json, HttpCaller.UTF8_CHARSET),
+					Index.class);
+			if (index == null || index._version != 1 || index._members == null) {
+				throw new RestBackupException("Unsupported bundle index in " + uri);
+			}
+			return new Bundle(caller, uri, index, dataLength);
+		} catch (JsonParseException e) {
+			throw new RestBackupException("Malformed bundle index in " + uri, e);
+		}
+	}
+
+	/**
+	 * Reads the footer with a suffix range request, which also reveals the
+	 * size of the bundle
+	 * 
+	 * @param size
+	 *            receives the size of the bundle
+	 */
+	private static byte[] readFooter(BackupApiCaller caller, String uri, long[] size)
+			throws RestBackupException {
+		HttpResponse response = caller.doGet(uri, new BasicHeader("Range", "bytes=-"
+				+ FOOTER_LENGTH));
+		try {
+			int code = response.getStatusLine().getStatusCode();
+			if (response.getEntity() == null) {
+				throw new RestBackupException("Response contains no body", response);
+			}
+			byte[] data = EntityUtils.toByteArray(response.getEntity());
+			if (code == 200) { // server ignored the Range header
+				size[0] = data.length;
+			} else {
+				caller.expectStatusCode(response, 206); // Partial Content
+				size[0] = HttpCaller.parseContentRange(response)[2];
+			}
+			if (data.length < FOOTER_LENGTH) {
+				throw new RestBackupException("File " + uri + " is not a bundle");
+			}
+			return Arrays.copyOfRange(data, data.length - FOOTER_LENGTH, data.length);
+		} catch (RestBackupException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RestBackupException("Error reading bundle " + uri, e);
+		} finally {
+			HttpCaller.closeResponseEntityInputStream(response);
+		}
+	}
+
+	private static byte[] readRange(BackupApiCaller caller, String uri, long offset, long length)
+			throws RestBackupException {
+		HttpEntity entity = caller.getRange(uri, offset, length);
+		try {
+			byte[] data = EntityUtils.toByteArray(entity);
+			if (data.length != length) {
+				throw new RestBackupException("Bundle " + uri + " is truncated");
+			}
+			return data;
+		} catch (RestBackupException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RestBackupException("Error reading bundle " + uri, e);
+		}
+	}
+
+	/**
+	 * @return the uri of the bundle
+	 */
+	public String getUri() {
+		return _uri;
+	}
+
+	/**
+	 * @return the names of the members, in the order they were added
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(_members.keySet());
+	}
+
+	/**
+	 * @return the details of a member, or null if the bundle has no such member
+	 */
+	public Member getMember(String name) {
+		return _members.get(name);
+	}
+
+	/**
+	 * Retrieves one member with a range request. Be sure to call
+	 * entity.getContent().close() to release the http connection.
+	 * 
+	 * @param name
+	 *            the name the member was added with
+	 * @return an entity with the data of the member
+	 * @throws UnauthorizedException
+	 *             if the access-URL is not accepted
+	 * @throws RestBackupException
+	 *             if the bundle has no such member, or on other errors
+	 */
+	public HttpEntity get(String name) throws UnauthorizedException, RestBackupException {
+		Member member = _members.get(name);
+		if (member == null) {
+			throw new RestBackupException("Bundle " + _uri + " has no member '" + name + "'");
+		}
+		if (member.size == 0) {
+			return new ByteArrayEntity(new byte[0]);
+		}
+		HttpEntity entity = _caller.getRange(_uri, member.offset, member.size);
+		if (entity.getContentLength() != member.size) {
+			try {
+				entity.getContent().close();
+			} catch (IOException e) {
+			}
+			throw new RestBackupException("Bundle " + _uri + " is truncated");
+		}
+		return entity;
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.gson.Gson;
+
+/**
+ * Packs many small files into a few large bundle objects, so each file does
+ * not cost a request. Files are added one at a time; when the pending files
+ * reach the bundle size they are uploaded as one bundle. The data is streamed
+ * from the files during the upload and is never held in memory. Instantiate
+ * like this:
+ * 
+ * <pre>
+ * BundleWriter writer = new BundleWriter(backup_api, &quot;/mail&quot;);
+ * for (Path file : files) {
+ * 	writer.add(file.toString(), file);
+ * }
+ * writer.close();
+ * String bundleUri = writer.getLocations().get(name);
+ * </pre>
+ * 
+ * @see Bundle
+ */
+public class BundleWriter {
+	public static final long DEFAULT_BUNDLE_SIZE = 64L * 1024L * 1024L;
+	private static final SecureRandom _random = new SecureRandom();
+
+	private final BackupApiCaller _caller;
+	private final String _uriPrefix;
+	private final long _bundleSize;
+	private final String _bundleId = Long.toHexString(_random.nextLong() >>> 1);
+	private final Map<String, String> _locations = new HashMap<String, String>();
+	private final List<Path> _pendingPaths = new ArrayList<Path>();
+	private Bundle.Index _pendingIndex = new Bundle.Index();
+	private long _pendingSize = 0;
+	private int _bundleCount = 0;
+
+	/**
+	 * Writes bundles of the default size
+	 * 
+	 * @param caller
+	 *            the backup account to upload to
+	 * @param uriPrefix
+	 *            bundles are stored at uriPrefix + "/bundle-..."
+	 */
+	public BundleWriter(BackupApiCaller caller, String uriPrefix) {
+		this(caller, uriPrefix, DEFAULT_BUNDLE_SIZE);
+	}
+
+	/**
+	 * @param caller
+	 *            the backup account to upload to
+	 * @param uriPrefix
+	 *            bundles are stored at uriPrefix + "/bundle-..."
+	 * @param bundleSize
+	 *            a bundle is uploaded when its members reach this size
+	 */
+	public BundleWriter(BackupApiCaller caller, String uriPrefix, long bundleSize) {
+		if (uriPrefix == null || (uriPrefix.length() > 0 && uriPrefix.charAt(0) != '/')) {
+			throw new IllegalArgumentException("Uri prefix is mal-formed '" + uriPrefix + "'");
+		}
+		if (bundleSize < 1) {
+			throw new IllegalArgumentException("bundleSize must be > 0");
+		}
+		_caller = caller;
+		_uriPrefix = uriPrefix;
+		_bundleSize = bundleSize;
+	}
+
+	/**
+	 * Adds a file to the current bundle and uploads the bundle if it is full
+	 * 
+	 * @param name
+	 *            the name of the member, unique within this writer
+	 * @param path
+	 *            the file to add. It must not change until its bundle is
+	 *            uploaded.
+	 * @throws RestBackupException
+	 *             if the file cannot be read or the upload fails
+	 */
+	public void add(String name, Path path) throws UnauthorizedException, RestBackupException {
+		if (_locations.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate member name '" + name + "'");
+		}
+		long size;
+		try {
+			size = Files.size(path);
+		} catch (IOException e) {
+			throw new RestBackupException("Error reading file " + path, e);
+		}
+		_pendingIndex._members.add(new Bundle.Member(name, _pendingSize, size));
+		_pendingPaths.add(path);
+		_pendingSize += size;
+		_locations.put(name, null);
+		if (_pendingSize >= _bundleSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Uploads the pending files as a bundle, if there are any
+	 * 
+	 * @throws RestBackupException
+	 *             if the upload fails
+	 */
+	public void flush() throws UnauthorizedException, RestBackupException {
+		if (_pendingPaths.isEmpty()) {
+			return;
+		}
+		String uri = String.format("%s/bundle-%s-%05d", _uriPrefix, _bundleId, _bundleCount);
+		_caller.put(uri, new BundleEntity(_pendingPaths, _pendingIndex));
+		for (Bundle.Member member : _pendingIndex._members) {
+			_locations.put(member.name, uri);
+		}
+		_bundleCount++;
+		_pendingPaths.clear();
+		_pendingIndex = new Bundle.Index();
+		_pendingSize = 0;
+	}
+
+	/**
+	 * Uploads the last bundle
+	 */
+	public void close() throws UnauthorizedException, RestBackupException {
+		flush();
+	}
+
+	/**
+	 * @return the uri of the bundle holding each member uploaded so far
+	 */
+	public Map<String, String> getLocations() {
+		Map<String, String> result = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : _locations.entrySet()) {
+			if (entry.getValue() != null) {
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Streams the member files followed by the index and footer
+	 */
+	private static class BundleEntity extends AbstractHttpEntity {
+		private final List<FileChannelEntity> _members = new ArrayList<FileChannelEntity>();
+		private final byte[] _trailer;
+		private final long _length;
+
+		BundleEntity(List<Path> paths, Bundle.Index index) {
+			long length = 0;
+			for (int i = 0; i < paths.size(); i++) {
+				long size = index._members.get(i).size;
+				_members.add(new FileChannelEntity(paths.get(i), 0, size));
+				length += size;
+			}
+			byte[] json = new Gson().toJson(index).getBytes(HttpCaller.UTF8_CHARSET);
+			ByteBuffer trailer = ByteBuffer.allocate(json.length + Bundle.FOOTER_LENGTH);
+			trailer.put(json).putLong(json.length).put(Bundle.MAGIC);
+			_trailer = trailer.array();
+			_length = length + _trailer.length;
+			setContentType("application/octet-stream");
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return _length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			final Iterator<FileChannelEntity> members = _members.iterator();
+			return new SequenceInputStream(new Enumeration<InputStream>() {
+				private boolean _trailerReturned = false;
+
+				@Override
+				public boolean hasMoreElements() {
+					return members.hasNext() || !_trailerReturned;
+				}
+
+				@Override
+				public InputStream nextElement() {
+					if (members.hasNext()) {
+						try {
+							return members.next().getContent();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+					_trailerReturned = true;
+					return new ByteArrayInputStream(_trailer);
+				}
+			});
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			if (outstream == null) {
+				throw new IllegalArgumentException("Output stream may not be null");
+			}
+			for (FileChannelEntity member : _members) {
+				member.writeTo(outstream);
+			}
+			outstream.write(_trailer);
+			outstream.flush();
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers which chunks were uploaded, so deduplicated uploads can skip them
+ * without asking the server. Stored as a text file with one line per chunk.
+ * <p>
+ * Backup accounts delete uploads after a retention period, so a chunk may not
+ * be referenced forever. Time is divided into generations of a fixed number of
+ * days. The generation is part of the chunk uri and a chunk is reused only
+ * within its generation. A file uploaded with putDeduplicated() stays
+ * restorable for at least the retention period of the account minus the
+ * generation length.
+ * 
+ * @see BackupApiCaller#putDeduplicated(String, org.apache.http.HttpEntity,
+ *      ChunkIndex)
+ */
+public class ChunkIndex {
+	private static final long SECONDS_PER_DAY = 24L * 60L * 60L;
+
+	private final Path _path;
+	private final long _generationSeconds;
+	/**
+	 * Guards the map and the writer. A lock rather than synchronized, so
+	 * virtual threads writing to the file do not pin their carrier thread.
+	 */
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Map<String, Long> _generations = new HashMap<String, Long>();
+	private Writer _writer;
+
+	/**
+	 * Opens the index, creating the file if it does not exist. Entries from
+	 * past generations are dropped from the file.
+	 * 
+	 * @param path
+	 *            the local file that holds the index
+	 * @param generationDays
+	 *            the number of days a chunk is reused before it is uploaded
+	 *            again. Choose it well below the retention period of the
+	 *            account.
+	 * @throws IOException
+	 *             if the file cannot be read or written
+	 */
+	public ChunkIndex(Path path, int generationDays) throws IOException {
+		if (generationDays < 1) {
+			throw new IllegalArgumentException("generationDays must be > 0");
+		}
+		_path = path;
+		_generationSeconds = generationDays * SECONDS_PER_DAY;
+		long generation = getCurrentGeneration();
+		if (Files.exists(path)) {
+			BufferedReader reader = Files.newBufferedReader(path, HttpCaller.UTF8_CHARSET);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int space = line.indexOf(' ');
+					if (space < 1) {
+						continue; // torn write
+					}
+					try {
+						long entryGeneration = Long.parseLong(line.substring(space + 1));
+						if (entryGeneration == generation) {
+							_generations.put(line.substring(0, space), entryGeneration);
+						}
+					} catch (NumberFormatException e) {
+						continue; // torn write
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		rewrite();
+	}
+
+	/**
+	 * Writes the live entries to a new file and replaces the old one
+	 */
+	private void rewrite() throws IOException {
+		Path temp = _path.resolveSibling(_path.getFileName() + ".tmp");
+		BufferedWriter writer = Files.newBufferedWriter(temp, HttpCaller.UTF8_CHARSET);
+		try {
+			for (Map.Entry<String, Long> entry : _generations.entrySet()) {
+				writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(temp, _path, StandardCopyOption.REPLACE_EXISTING);
+		_writer = Files.newBufferedWriter(_path, HttpCaller.UTF8_CHARSET,
+				StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return the generation that new uploads belong to
+	 */
+	public long getCurrentGeneration() {
+		return System.currentTimeMillis() / 1000L / _generationSeconds;
+	}
+
+	/**
+	 * @param hash
+	 *            the hex SHA-256 digest of the chunk
+	 * @return true if the chunk was uploaded in the specified generation
+	 */
+	public boolean contains(String hash, long generation) {
+		_lock.lock();
+		try {
+			Long entryGeneration = _generations.get(hash);
+			return entryGeneration != null && entryGeneration.longValue() == generation;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the chunk is stored on the server and flushes the record to
+	 * the file
+	 * 
+	 * @param hash
+	 *            the hex SHA-256 digest of the chunk
+	 */
+	public void add(String hash, long generation) throws IOException {
+		_lock.lock();
+		try {
+			if (_writer == null) {
+				throw new IOException("Index is closed");
+			}
+			if (contains(hash, generation)) {
+				return;
+			}
+			_generations.put(hash, generation);
+			_writer.write(hash + " " + generation + "\n");
+			_writer.flush();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of chunks in the index
+	 */
+	public int size() {
+		_lock.lock();
+		try {
+			return _generations.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		_lock.lock();
+		try {
+			if (_writer != null) {
+				_writer.close();
+				_writer = null;
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+}
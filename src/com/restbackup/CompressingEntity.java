@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Compresses an entity as it is uploaded. The data is split into blocks that
+ * are compressed in parallel into independent gzip members and written in
+ * order. Blocks that look incompressible are stored without compression, so
+ * media files do not waste processor time. The result is a valid
+ * multi-member gzip file. Instantiate like this:
+ * 
+ * <pre>
+ * backup_api.put(uri, new CompressingEntity(new FileChannelEntity(path)));
+ * </pre>
+ * 
+ * @see DecompressingEntity
+ */
+public class CompressingEntity extends HttpEntityWrapper {
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	/** DecompressingEntity refuses members that claim larger blocks */
+	public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+	/** Blocks whose sampled entropy exceeds this are stored */
+	public static final double MAX_COMPRESSIBLE_BITS_PER_BYTE = 7.5;
+	private static final int ENTROPY_SAMPLE_SIZE = 16 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int _blockSize;
+	private final int _level;
+	private final ExecutorService _executor;
+	private final int _maxInFlight;
+
+	/**
+	 * Compresses with the default level and block size on the shared pool
+	 * 
+	 * @param wrapped
+	 *            the entity to compress
+	 */
+	public CompressingEntity(HttpEntity wrapped) {
+		this(wrapped, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE, BlockPipelineInputStream
+				.getDefaultExecutor(), 2 * BlockPipelineInputStream.getDefaultParallelism());
+	}
+
+	/**
+	 * @param wrapped
+	 *            the entity to compress
+	 * @param level
+	 *            the deflate level, 1 to 9, or Deflater.DEFAULT_COMPRESSION
+	 * @param blockSize
+	 *            the number of bytes in each independently compressed block,
+	 *            1 to MAX_BLOCK_SIZE
+	 * @param executor
+	 *            the pool that compresses the blocks
+	 * @param maxInFlight
+	 *            the maximum number of blocks held in memory at once
+	 */
+	public CompressingEntity(HttpEntity wrapped, int level, int blockSize,
+			ExecutorService executor, int maxInFlight) {
+		super(wrapped);
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("level must be 1 to 9");
+		}
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("blockSize must be 1 to " + MAX_BLOCK_SIZE);
+		}
+		_level = level;
+		_blockSize = blockSize;
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isChunked() {
+		return true;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		BlockPipelineInputStream.Transform compress = new BlockPipelineInputStream.Transform() {
+			@Override
+			public byte[] apply(byte[] block, long index, boolean last) {
+				boolean store = sampleEntropy(block) > MAX_COMPRESSIBLE_BITS_PER_BYTE;
+				byte[] member = GzipMember.compress(block, store ? Deflater.NO_COMPRESSION
+						: _level);
+				if (!store && member.length > block.length) {
+					member = GzipMember.compress(block, Deflater.NO_COMPRESSION);
+				}
+				return member;
+			}
+		};
+		return new BlockPipelineInputStream(BlockPipelineInputStream.fixedSizeBlocks(
+				wrappedEntity.getContent(), _blockSize, false), compress, _executor, _maxInFlight);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return wrappedEntity.isStreaming();
+	}
+
+	/**
+	 * Estimates the Shannon entropy of the block from evenly spaced samples
+	 * 
+	 * @return the estimated number of bits of information per byte, 0 to 8
+	 */
+	static double sampleEntropy(byte[] block) {
+		if (block.length == 0) {
+			return 0;
+		}
+		int[] counts = new int[256];
+		int samples;
+		if (block.length <= ENTROPY_SAMPLE_SIZE) {
+			for (byte b : block) {
+				counts[b & 0xff]++;
+			}
+			samples = block.length;
+		} else { // 16 runs of 1 KB spread across the block
+			int runLength = ENTROPY_SAMPLE_SIZE / 16;
+			int stride = block.length / 16;
+			for (int run = 0; run < 16; run++) {
+				int start = run * stride;
+				for (int i = start; i < start + runLength; i++) {
+					counts[block[i] & 0xff]++;
+				}
+			}
+			samples = 16 * runLength;
+		}
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double p = (double) count / samples;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight, adapting the limit to the server.
+ * While the short-term average latency stays near the long-term average, the
+ * limit grows by up to one request per round trip. When a request fails with
+ * a 5xx response, a timeout or a network error, or when the short-term
+ * average rises past twice the long-term one, the limit is cut by a quarter.
+ * Requests that started before the last cut do not cut it again, so one burst
+ * of failures counts once.
+ * 
+ * A request holds its permit until the response headers arrive. Uploads with
+ * large bodies count toward the limit but not toward latency, since their
+ * latency mostly measures the upload.
+ * 
+ * The limiter is disabled until setEnabled(true) is called.
+ * 
+ * @see HttpCaller#getConcurrencyLimiter()
+ */
+public class ConcurrencyLimiter {
+	public static final int DEFAULT_INITIAL_LIMIT = 10;
+	public static final int DEFAULT_MAX_LIMIT = 200;
+	/** Request bodies larger than this are not used as latency samples */
+	public static final long MAX_SAMPLED_BODY_SIZE = 64 * 1024;
+	static final double BACKOFF_RATIO = 0.75;
+	static final double LATENCY_TOLERANCE = 2.0;
+	/** Rises smaller than this are noise, even if more than twice the baseline */
+	private static final double MIN_LATENCY_RISE_NANOS = 1000000;
+	/** Weight of each sample in the short-term average */
+	private static final double SMOOTHING = 0.1;
+	/** Weight of each sample in the long-term average, the baseline */
+	private static final double BASELINE_SMOOTHING = 0.01;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _permitAvailable = _lock.newCondition();
+	private volatile boolean _enabled = false;
+	private int _minLimit = 1;
+	private int _maxLimit = DEFAULT_MAX_LIMIT;
+	private double _limit = DEFAULT_INITIAL_LIMIT;
+	private int _inFlight = 0;
+	private double _baselineNanos = 0;
+	private double _smoothedNanos = 0;
+	private long _lastCutNanos = System.nanoTime();
+
+	/**
+	 * @return true if requests wait for permits
+	 */
+	public boolean isEnabled() {
+		return _enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *            true to make requests wait for permits, false to let all
+	 *            requests proceed
+	 */
+	public void setEnabled(boolean enabled) {
+		_lock.lock();
+		try {
+			_enabled = enabled;
+			_permitAvailable.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the range the limit adapts within. The current limit is moved into
+	 * the range.
+	 * 
+	 * @param minLimit
+	 *            the smallest limit, must be > 0
+	 * @param maxLimit
+	 *            the largest limit, must be >= minLimit
+	 */
+	public void setLimitRange(int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("Need 0 < minLimit <= maxLimit");
+		}
+		_lock.lock();
+		try {
+			_minLimit = minLimit;
+			_maxLimit = maxLimit;
+			_limit = Math.max(minLimit, Math.min(maxLimit, _limit));
+			_permitAvailable.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests that may be in flight at once
+	 */
+	public int getLimit() {
+		_lock.lock();
+		try {
+			return (int) _limit;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests holding permits
+	 */
+	public int getInFlight() {
+		_lock.lock();
+		try {
+			return _inFlight;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a permit to send a request. Every call must be followed by
+	 * exactly one call to onSuccess, onDropped or onIgnored.
+	 * 
+	 * @return the start time of the request, to pass to onSuccess or onDropped
+	 * @throws RestBackupException
+	 *             if the thread is interrupted while waiting
+	 */
+	public long acquire() throws RestBackupException {
+		_lock.lock();
+		try {
+			while (_enabled && _inFlight >= (int) _limit) {
+				_permitAvailable.await();
+			}
+			_inFlight++;
+			return System.nanoTime();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestBackupException("Interrupted while waiting to send a request", e);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the permit of a request that succeeded
+	 * 
+	 * @param startNanos
+	 *            the value returned by acquire
+	 * @param sampleLatency
+	 *            true if the time the request took reflects server latency
+	 */
+	public void onSuccess(long startNanos, boolean sampleLatency) {
+		long now = System.nanoTime();
+		_lock.lock();
+		try {
+			boolean wasBusy = _inFlight * 2 >= (int) _limit;
+			release();
+			if (sampleLatency) {
+				double latency = now - startNanos;
+				if (_baselineNanos == 0) {
+					_baselineNanos = latency;
+					_smoothedNanos = latency;
+				} else {
+					_smoothedNanos += SMOOTHING * (latency - _smoothedNanos);
+					_baselineNanos += BASELINE_SMOOTHING * (latency - _baselineNanos);
+				}
+				if (_smoothedNanos > LATENCY_TOLERANCE * _baselineNanos
+						&& _smoothedNanos - _baselineNanos > MIN_LATENCY_RISE_NANOS) {
+					if (cut(startNanos, now)) {
+						// measure again under the new limit
+						_smoothedNanos = _baselineNanos;
+					}
+					return;
+				}
+			}
+			// only grow a limit that is being used
+			if (wasBusy && _limit < _maxLimit) {
+				_limit = Math.min(_maxLimit, _limit + 1 / _limit);
+				_permitAvailable.signalAll();
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the permit of a request that failed with a 5xx response, a
+	 * timeout or a network error
+	 * 
+	 * @param startNanos
+	 *            the value returned by acquire
+	 */
+	public void onDropped(long startNanos) {
+		long now = System.nanoTime();
+		_lock.lock();
+		try {
+			release();
+			cut(startNanos, now);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the permit of a request whose outcome says nothing about the
+	 * server's load, such as a 4xx response
+	 */
+	public void onIgnored() {
+		_lock.lock();
+		try {
+			release();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void release() {
+		_inFlight--;
+		_permitAvailable.signal();
+	}
+
+	private boolean cut(long startNanos, long now) {
+		if (startNanos - _lastCutNanos < 0) {
+			return false; // sent under the old limit
+		}
+		_limit = Math.max(_minLimit, _limit * BACKOFF_RATIO);
+		_lastCutNanos = now;
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content, so an
+ * insertion or deletion changes only the chunks around it. Uses a gear
+ * rolling hash with a stricter boundary test below the average chunk size and
+ * a looser one above it, which narrows the spread of chunk sizes.
+ * 
+ * @see BackupApiCaller#putDeduplicated(String, org.apache.http.HttpEntity,
+ *      ChunkIndex)
+ */
+public class ContentDefinedChunker {
+	public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+	public static final int DEFAULT_AVERAGE_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Random values for each byte. java.util.Random is specified exactly, so
+	 * every JVM produces the same table and the same chunk boundaries.
+	 */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x5265737442616b75L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final InputStream _input;
+	private final int _minSize;
+	private final int _averageSize;
+	private final int _maxSize;
+	private final long _smallMask;
+	private final long _largeMask;
+	private final byte[] _buffer;
+	private int _start = 0;
+	private int _end = 0;
+	private boolean _eof = false;
+
+	/**
+	 * Splits the stream into chunks of the default sizes
+	 */
+	public ContentDefinedChunker(InputStream input) {
+		this(input, DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param input
+	 *            the stream to split
+	 * @param minSize
+	 *            no chunk except the last is smaller than this
+	 * @param averageSize
+	 *            the desired chunk size, a power of two
+	 * @param maxSize
+	 *            no chunk is larger than this
+	 */
+	public ContentDefinedChunker(InputStream input, int minSize, int averageSize, int maxSize) {
+		if (minSize < 1 || averageSize <= minSize || maxSize <= averageSize
+				|| Integer.bitCount(averageSize) != 1) {
+			throw new IllegalArgumentException(
+					"Sizes must satisfy 0 < min < average < max and average must be a power of two");
+		}
+		_input = input;
+		_minSize = minSize;
+		_averageSize = averageSize;
+		_maxSize = maxSize;
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		// The high bits of the hash depend on the most bytes
+		_smallMask = -1L << (64 - bits - 1);
+		_largeMask = -1L << (64 - bits + 1);
+		_buffer = new byte[2 * maxSize];
+	}
+
+	/**
+	 * Reads the next chunk
+	 * 
+	 * @return the data of the chunk, or null at the end of the stream
+	 * @throws IOException
+	 *             if reading the stream fails
+	 */
+	public byte[] next() throws IOException {
+		fill();
+		int available = _end - _start;
+		if (available == 0) {
+			return null;
+		}
+		int length = findBoundary(_buffer, _start, available);
+		byte[] chunk = Arrays.copyOfRange(_buffer, _start, _start + length);
+		_start += length;
+		return chunk;
+	}
+
+	/**
+	 * Reads until the buffer holds at least a maximum-sized chunk or the
+	 * stream ends
+	 */
+	private void fill() throws IOException {
+		if (_end - _start >= _maxSize || _eof) {
+			return;
+		}
+		System.arraycopy(_buffer, _start, _buffer, 0, _end - _start);
+		_end -= _start;
+		_start = 0;
+		while (_end < _buffer.length) {
+			int bytesRead = _input.read(_buffer, _end, _buffer.length - _end);
+			if (bytesRead == -1) {
+				_eof = true;
+				break;
+			}
+			_end += bytesRead;
+		}
+	}
+
+	/**
+	 * @return the length of the chunk starting at offset
+	 */
+	private int findBoundary(byte[] data, int offset, int available) {
+		if (available <= _minSize) {
+			return available;
+		}
+		int limit = Math.min(available, _maxSize);
+		int middle = Math.min(limit, _averageSize);
+		long hash = 0;
+		int i = _minSize;
+		for (; i < middle; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & _smallMask) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & _largeMask) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Closes the underlying stream
+	 */
+	public void close() throws IOException {
+		_input.close();
+	}
+}
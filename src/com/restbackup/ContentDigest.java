@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Holds the SHA-256 digest, CRC-32 checksum and size of a file. Stored as a
+ * small JSON object next to the file it describes.
+ * 
+ * @see BackupApiCaller#putVerified(String, HttpEntity)
+ * @see BackupApiCaller#getVerified(String)
+ */
+public class ContentDigest {
+	public static final String CONTENT_TYPE = "application/json";
+
+	@SerializedName("sha256")
+	private String _sha256 = null;
+	@SerializedName("crc32")
+	private long _crc32 = -1;
+	@SerializedName("size")
+	private long _size = -1;
+
+	public ContentDigest() {
+	}
+
+	public ContentDigest(String sha256, long crc32, long size) {
+		_sha256 = sha256;
+		_crc32 = crc32;
+		_size = size;
+	}
+
+	/**
+	 * @return the SHA-256 digest as 64 lowercase hex digits
+	 */
+	public String getSha256() {
+		return _sha256;
+	}
+
+	/**
+	 * @return the CRC-32 checksum
+	 */
+	public long getCrc32() {
+		return _crc32;
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getSize() {
+		return _size;
+	}
+
+	/**
+	 * @return the digest as an entity ready for upload
+	 */
+	public HttpEntity toEntity() {
+		byte[] json = new Gson().toJson(this).getBytes(HttpCaller.UTF8_CHARSET);
+		ByteArrayEntity entity = new ByteArrayEntity(json);
+		entity.setContentType(CONTENT_TYPE);
+		return entity;
+	}
+
+	/**
+	 * Parses a digest
+	 * 
+	 * @throws RestBackupException
+	 *             if the digest is malformed
+	 */
+	public static ContentDigest read(InputStream input) throws RestBackupException {
+		try {
+			ContentDigest digest = new Gson().fromJson(new InputStreamReader(input,
+					HttpCaller.UTF8_CHARSET), ContentDigest.class);
+			if (digest == null || digest._sha256 == null || digest._sha256.length() != 64
+					|| digest._crc32 < 0 || digest._size < 0) {
+				throw new RestBackupException("Malformed digest");
+			}
+			return digest;
+		} catch (JsonParseException e) {
+			throw new RestBackupException("Malformed digest", e);
+		}
+	}
+
+	/**
+	 * @return a string like
+	 *         "ContentDigest(sha256=e3b0c442...,crc32=0,size=0)"
+	 */
+	public String toString() {
+		return String.format("ContentDigest(sha256=%s,crc32=%d,size=%d)", _sha256, _crc32,
+				_size);
+	}
+
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ContentDigest)) {
+			return false;
+		}
+		ContentDigest other = (ContentDigest) obj;
+		return _crc32 == other._crc32 && _size == other._size
+				&& (_sha256 == null ? other._sha256 == null : _sha256.equals(other._sha256));
+	}
+
+	public int hashCode() {
+		int hash = _sha256 == null ? 0 : _sha256.hashCode();
+		hash = 31 * hash + (int) (_crc32 ^ (_crc32 >>> 32));
+		return 31 * hash + (int) (_size ^ (_size >>> 32));
+	}
+
+	/**
+	 * Computes a digest incrementally
+	 */
+	static class Builder {
+		private final MessageDigest _sha256;
+		private final CRC32 _crc32 = new CRC32();
+		private long _size = 0;
+
+		Builder() {
+			try {
+				_sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e); // should never happen
+			}
+		}
+
+		void update(byte[] b, int off, int len) {
+			_sha256.update(b, off, len);
+			_crc32.update(b, off, len);
+			_size += len;
+		}
+
+		long getSize() {
+			return _size;
+		}
+
+		ContentDigest build() {
+			byte[] digest = _sha256.digest();
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return new ContentDigest(hex.toString(), _crc32.getValue(), _size);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Decompresses a file uploaded with CompressingEntity. The gzip members are
+ * inflated in parallel. By default, files that were not written by
+ * CompressingEntity pass through unchanged, so restores of mixed files need
+ * no bookkeeping. Instantiate like this:
+ * 
+ * <pre>
+ * HttpEntity entity = new DecompressingEntity(backup_api.get(uri));
+ * </pre>
+ * 
+ * A file is taken to be compressed when it starts with the header of a
+ * CompressingEntity gzip member. A file that was stored in that format on
+ * purpose, such as the output of CompressingEntity uploaded as is, is
+ * inflated as well. When you know which files were compressed, turn off
+ * passUncompressed: the entity then always decompresses, and fails on a
+ * file that is not compressed.
+ * 
+ * @see CompressingEntity
+ */
+public class DecompressingEntity extends HttpEntityWrapper {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ExecutorService _executor;
+	private final int _maxInFlight;
+	private final boolean _passUncompressed;
+
+	/**
+	 * Decompresses on the shared pool, and passes uncompressed files through
+	 * 
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 */
+	public DecompressingEntity(HttpEntity wrapped) {
+		this(wrapped, true);
+	}
+
+	/**
+	 * Decompresses on the shared pool
+	 * 
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 * @param passUncompressed
+	 *            true to pass files that do not start with a gzip member
+	 *            through unchanged, false to fail on them
+	 */
+	public DecompressingEntity(HttpEntity wrapped, boolean passUncompressed) {
+		this(wrapped, BlockPipelineInputStream.getDefaultExecutor(),
+				2 * BlockPipelineInputStream.getDefaultParallelism(), passUncompressed);
+	}
+
+	/**
+	 * Passes uncompressed files through
+	 * 
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 * @param executor
+	 *            the pool that decompresses the blocks
+	 * @param maxInFlight
+	 *            the maximum number of blocks held in memory at once
+	 */
+	public DecompressingEntity(HttpEntity wrapped, ExecutorService executor, int maxInFlight) {
+		this(wrapped, executor, maxInFlight, true);
+	}
+
+	/**
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 * @param executor
+	 *            the pool that decompresses the blocks
+	 * @param maxInFlight
+	 *            the maximum number of blocks held in memory at once
+	 * @param passUncompressed
+	 *            true to pass files that do not start with a gzip member
+	 *            through unchanged, false to fail on them
+	 */
+	public DecompressingEntity(HttpEntity wrapped, ExecutorService executor, int maxInFlight,
+			boolean passUncompressed) {
+		super(wrapped);
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+		_passUncompressed = passUncompressed;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final PushbackInputStream input = new PushbackInputStream(wrappedEntity.getContent(),
+				GzipMember.HEADER_LENGTH);
+		byte[] header = new byte[GzipMember.HEADER_LENGTH];
+		int length = 0;
+		while (length < header.length) {
+			int bytesRead = input.read(header, length, header.length - length);
+			if (bytesRead == -1) {
+				break;
+			}
+			length += bytesRead;
+		}
+		input.unread(header, 0, length);
+		if (length < header.length || !GzipMember.isHeader(header)) {
+			if (_passUncompressed || length == 0) {
+				return input; // not compressed, or empty
+			}
+			input.close();
+			throw new IOException("Not a file written by CompressingEntity");
+		}
+		BlockPipelineInputStream.Source members = new BlockPipelineInputStream.Source() {
+			@Override
+			public byte[] next() throws IOException {
+				return GzipMember.read(input);
+			}
+
+			@Override
+			public void close() throws IOException {
+				input.close();
+			}
+		};
+		BlockPipelineInputStream.Transform decompress = new BlockPipelineInputStream.Transform() {
+			@Override
+			public byte[] apply(byte[] member, long index, boolean last) throws IOException {
+				return GzipMember.decompress(member);
+			}
+		};
+		return new BlockPipelineInputStream(members, decompress, _executor, _maxInFlight);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+}
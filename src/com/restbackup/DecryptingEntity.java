@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Decrypts a file uploaded with EncryptingEntity. Segments are opened in
+ * parallel and each is authenticated before its data is returned. Reading
+ * fails with an IOException if the file was modified or truncated.
+ * Instantiate like this:
+ * 
+ * <pre>
+ * HttpEntity entity = new DecryptingEntity(backup_api.get(uri), key);
+ * </pre>
+ * 
+ * @see SegmentCipher
+ * @see EncryptingEntity
+ */
+public class DecryptingEntity extends HttpEntityWrapper {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final SecretKey _key;
+	private final ExecutorService _executor;
+	private final int _maxInFlight;
+
+	/**
+	 * Decrypts on the shared pool
+	 * 
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 * @param key
+	 *            the key the file was encrypted with
+	 */
+	public DecryptingEntity(HttpEntity wrapped, SecretKey key) {
+		this(wrapped, key, BlockPipelineInputStream.getDefaultExecutor(),
+				2 * BlockPipelineInputStream.getDefaultParallelism());
+	}
+
+	/**
+	 * @param wrapped
+	 *            an entity downloaded with BackupApiCaller.get()
+	 * @param key
+	 *            the key the file was encrypted with
+	 * @param executor
+	 *            the pool that decrypts the segments
+	 * @param maxInFlight
+	 *            the maximum number of segments held in memory at once
+	 */
+	public DecryptingEntity(HttpEntity wrapped, SecretKey key, ExecutorService executor,
+			int maxInFlight) {
+		super(wrapped);
+		_key = key;
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * The size of the plaintext is known only after the header is read
+	 */
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final InputStream input = wrappedEntity.getContent();
+		byte[] header = new byte[SegmentCipher.HEADER_LENGTH];
+		int length = 0;
+		while (length < header.length) {
+			int bytesRead = input.read(header, length, header.length - length);
+			if (bytesRead == -1) {
+				break;
+			}
+			length += bytesRead;
+		}
+		if (length < header.length) {
+			input.close();
+			throw new IOException("Encrypted file is truncated");
+		}
+		final SegmentCipher cipher;
+		try {
+			cipher = SegmentCipher.open(_key, header);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+		final BlockPipelineInputStream.Source blocks = BlockPipelineInputStream.fixedSizeBlocks(
+				input, cipher.getSegmentSize() + SegmentCipher.TAG_LENGTH, false);
+		BlockPipelineInputStream.Source segments = new BlockPipelineInputStream.Source() {
+			private boolean _first = true;
+
+			@Override
+			public byte[] next() throws IOException {
+				byte[] segment = blocks.next();
+				if (segment == null && _first) {
+					throw new IOException("Encrypted file is truncated");
+				}
+				_first = false;
+				return segment;
+			}
+
+			@Override
+			public void close() throws IOException {
+				blocks.close();
+			}
+		};
+		BlockPipelineInputStream.Transform decrypt = new BlockPipelineInputStream.Transform() {
+			@Override
+			public byte[] apply(byte[] block, long index, boolean last) throws IOException {
+				return cipher.decrypt(block, index, last);
+			}
+		};
+		return new BlockPipelineInputStream(segments, decrypt, _executor, _maxInFlight);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+}
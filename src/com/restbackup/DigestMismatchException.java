@@ -0,0 +1,15 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+public class DigestMismatchException extends RestBackupException {
+	private static final long serialVersionUID = 1L;
+
+	public DigestMismatchException(String s) {
+		super(s);
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Computes the digest of an entity while it is sent, without reading the data
+ * a second time. The digest is available after writeTo() returns or after
+ * the stream from getContent() is read to the end. Each new transmission
+ * starts a new digest.
+ * 
+ * @see ContentDigest
+ * @see BackupApiCaller#putVerified(String, HttpEntity)
+ */
+public class DigestingEntity extends HttpEntityWrapper {
+	private volatile ContentDigest _digest = null;
+
+	public DigestingEntity(HttpEntity wrapped) {
+		super(wrapped);
+	}
+
+	/**
+	 * @return the digest of the data last sent in full, or null if the data
+	 *         has not been sent
+	 */
+	public ContentDigest getDigest() {
+		return _digest;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final ContentDigest.Builder builder = new ContentDigest.Builder();
+		return new FilterInputStream(wrappedEntity.getContent()) {
+			private final byte[] _oneByte = new byte[1];
+			private boolean _finished = false;
+
+			@Override
+			public int read() throws IOException {
+				int bytesRead;
+				do {
+					bytesRead = read(_oneByte, 0, 1);
+				} while (bytesRead == 0);
+				return bytesRead == -1 ? -1 : _oneByte[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int bytesRead = in.read(b, off, len);
+				if (bytesRead == -1) {
+					if (!_finished) { // build() resets the builder
+						_finished = true;
+						_digest = builder.build();
+					}
+				} else {
+					builder.update(b, off, bytesRead);
+				}
+				return bytesRead;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throw new IOException("Skipping would leave data out of the digest");
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		final ContentDigest.Builder builder = new ContentDigest.Builder();
+		wrappedEntity.writeTo(new FilterOutputStream(outstream) {
+			private final byte[] _oneByte = new byte[1];
+
+			@Override
+			public void write(int b) throws IOException {
+				_oneByte[0] = (byte) b;
+				write(_oneByte, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				builder.update(b, off, len);
+				out.write(b, off, len);
+			}
+		});
+		_digest = builder.build();
+	}
+}
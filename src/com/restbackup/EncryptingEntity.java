@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Encrypts an entity as it is uploaded. Segments are sealed in parallel on a
+ * thread pool. Instantiate like this:
+ * 
+ * <pre>
+ * backup_api.put(uri, new EncryptingEntity(new FileChannelEntity(path), key));
+ * </pre>
+ * 
+ * @see SegmentCipher
+ * @see DecryptingEntity
+ */
+public class EncryptingEntity extends HttpEntityWrapper {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final SecretKey _key;
+	private final int _segmentSize;
+	private final ExecutorService _executor;
+	private final int _maxInFlight;
+
+	/**
+	 * Encrypts with the default segment size on the shared pool
+	 * 
+	 * @param wrapped
+	 *            the entity to encrypt
+	 * @param key
+	 *            an AES key of 128, 192 or 256 bits
+	 */
+	public EncryptingEntity(HttpEntity wrapped, SecretKey key) {
+		this(wrapped, key, SegmentCipher.DEFAULT_SEGMENT_SIZE, BlockPipelineInputStream
+				.getDefaultExecutor(), 2 * BlockPipelineInputStream.getDefaultParallelism());
+	}
+
+	/**
+	 * @param wrapped
+	 *            the entity to encrypt
+	 * @param key
+	 *            an AES key of 128, 192 or 256 bits
+	 * @param segmentSize
+	 *            the number of plaintext bytes in each segment, 1 to
+	 *            SegmentCipher.MAX_SEGMENT_SIZE
+	 * @param executor
+	 *            the pool that encrypts the segments
+	 * @param maxInFlight
+	 *            the maximum number of segments held in memory at once
+	 */
+	public EncryptingEntity(HttpEntity wrapped, SecretKey key, int segmentSize,
+			ExecutorService executor, int maxInFlight) {
+		super(wrapped);
+		if (segmentSize < 1 || segmentSize > SegmentCipher.MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be 1 to "
+					+ SegmentCipher.MAX_SEGMENT_SIZE);
+		}
+		_key = key;
+		_segmentSize = segmentSize;
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+	}
+
+	@Override
+	public long getContentLength() {
+		long length = wrappedEntity.getContentLength();
+		return length < 0 ? -1 : SegmentCipher.getCiphertextSize(length, _segmentSize);
+	}
+
+	@Override
+	public boolean isChunked() {
+		return getContentLength() < 0;
+	}
+
+	/**
+	 * Each call encrypts with a new salt, so repeated uploads differ
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		final SegmentCipher cipher;
+		try {
+			cipher = SegmentCipher.create(_key, _segmentSize);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to use key", e);
+		}
+		BlockPipelineInputStream.Transform encrypt = new BlockPipelineInputStream.Transform() {
+			@Override
+			public byte[] apply(byte[] block, long index, boolean last) throws IOException {
+				return cipher.encrypt(block, index, last);
+			}
+		};
+		// An empty entity still gets one segment, so truncation is detected
+		InputStream segments = new BlockPipelineInputStream(BlockPipelineInputStream
+				.fixedSizeBlocks(wrappedEntity.getContent(), _segmentSize, true), encrypt,
+				_executor, _maxInFlight);
+		return new SequenceInputStream(new ByteArrayInputStream(cipher.getHeader()), segments);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return wrappedEntity.isStreaming();
+	}
+}
@@ -0,0 +1,849 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A local catalog of the files in many backup accounts, kept on disk and read
+ * through memory maps. Listings and upload receipts are appended to a log.
+ * An index file holds the log offsets of the entries twice: sorted by account
+ * and uri, and sorted by create time. Lookups binary search the mapped index
+ * and read the entries from the mapped log, so they take microseconds and use
+ * almost no heap for any number of entries.
+ * 
+ * Entries appended since the index was last written are held in memory and
+ * searched as well. Once there are more of them than the merge threshold,
+ * they are merged into a new index, which rewrites it in one sequential pass.
+ * For bulk loads, raise the threshold and call flush() at the end.
+ * 
+ * Appended entries are written to the log at once but not forced to disk
+ * until flush() or close(). Entries left unindexed by a crash are read back
+ * from the log when the catalog is opened; a partly written entry at the end
+ * is dropped. Only one catalog object may have the directory open at a time.
+ * Safe for use by several threads.
+ * 
+ * @see BackupApiCaller#setCatalog(FileCatalog, String)
+ */
+public class FileCatalog implements Closeable {
+	public static final int DEFAULT_MERGE_THRESHOLD = 65536;
+	/** The longest account or uri, in bytes of UTF-8 */
+	public static final int MAX_NAME_LENGTH = 65535;
+
+	private static final String LOG_NAME = "catalog.log";
+	private static final String INDEX_NAME = "catalog.idx";
+	private static final byte[] LOG_MAGIC = { 'R', 'B', 'C', 'A', 'T', 'L', 'G', '1' };
+	private static final byte[] INDEX_MAGIC = { 'R', 'B', 'C', 'A', 'T', 'I', 'X', '1' };
+	/** Magic, indexed log length, entry count and a spare long */
+	private static final int INDEX_HEADER_LENGTH = 32;
+	/** Key prefix and log offset, or create time and log offset */
+	private static final int INDEX_RECORD_LENGTH = 16;
+	/** Log records never cross a segment boundary, so each is in one map */
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	// Each log record is an int length followed by these fields and the key
+	private static final int SIZE = 4;
+	private static final int CREATE_TIME = 12;
+	private static final int DELETE_TIME = 20;
+	private static final int ACCOUNT_LENGTH = 28; // unsigned short
+	private static final int KEY = 30;
+
+	/**
+	 * The details of a file in a backup account
+	 */
+	public static class Entry {
+		private final String _account;
+		private final String _uri;
+		private final long _size;
+		private final long _createTimeSec;
+		private final long _deleteTimeSec;
+
+		public Entry(String account, FileDetails file) {
+			this(account, file.getUri(), file.getSize(), file.getCreateTimeSec(), file
+					.getDeleteTimeSec());
+		}
+
+		public Entry(String account, String uri, long size, long createTimeSec,
+				long deleteTimeSec) {
+			if (account == null || uri == null) {
+				throw new IllegalArgumentException("account and uri must not be null");
+			}
+			_account = account;
+			_uri = uri;
+			_size = size;
+			_createTimeSec = createTimeSec;
+			_deleteTimeSec = deleteTimeSec;
+		}
+
+		/**
+		 * @return the account the file is stored in, as given when recorded
+		 */
+		public String getAccount() {
+			return _account;
+		}
+
+		public String getUri() {
+			return _uri;
+		}
+
+		public long getSize() {
+			return _size;
+		}
+
+		public long getCreateTimeSec() {
+			return _createTimeSec;
+		}
+
+		public long getDeleteTimeSec() {
+			return _deleteTimeSec;
+		}
+
+		public FileDetails toFileDetails() {
+			return new FileDetails(_uri, _size, _createTimeSec, _deleteTimeSec);
+		}
+
+		public String toString() {
+			return String.format("Entry(account=\"%s\",uri=\"%s\",size=%d,createTime=%d,"
+					+ "deleteTime=%d)", _account, _uri, _size, _createTimeSec, _deleteTimeSec);
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Entry)) {
+				return false;
+			}
+			Entry other = (Entry) obj;
+			return _size == other._size && _createTimeSec == other._createTimeSec
+					&& _deleteTimeSec == other._deleteTimeSec && _account.equals(other._account)
+					&& _uri.equals(other._uri);
+		}
+
+		public int hashCode() {
+			int hash = 31 * _account.hashCode() + _uri.hashCode();
+			return 31 * hash + (int) (_createTimeSec ^ (_createTimeSec >>> 32));
+		}
+	}
+
+	/**
+	 * An entry appended since the index was written
+	 */
+	private static class TailEntry {
+		final Entry entry;
+		final byte[] key;
+		final long prefix;
+		final long offset;
+
+		TailEntry(Entry entry, byte[] key, long offset) {
+			this.entry = entry;
+			this.key = key;
+			this.prefix = keyPrefix(key);
+			this.offset = offset;
+		}
+	}
+
+	private static final Comparator<TailEntry> KEY_ORDER = new Comparator<TailEntry>() {
+		@Override
+		public int compare(TailEntry a, TailEntry b) {
+			return Arrays.compareUnsigned(a.key, b.key);
+		}
+	};
+
+	private static final Comparator<TailEntry> CREATE_TIME_ORDER = new Comparator<TailEntry>() {
+		@Override
+		public int compare(TailEntry a, TailEntry b) {
+			return Long.compare(a.entry._createTimeSec, b.entry._createTimeSec);
+		}
+	};
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Path _directory;
+	private final FileChannel _log;
+	private final FileLock _fileLock;
+	private long _logEnd;
+	/** The log up to here is indexed and mapped */
+	private long _indexedEnd;
+	private MappedByteBuffer[] _logSegments;
+	/** Entries _indexCount records sorted by key, then as many by create time */
+	private MappedTable _index = null;
+	private long _indexCount = 0;
+	private final List<TailEntry> _tail = new ArrayList<TailEntry>();
+	/** The same entries by account and uri, in the order appended */
+	private final Map<String, List<TailEntry>> _tailByKey = new HashMap<String, List<TailEntry>>();
+	private int _mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+	private boolean _closed = false;
+
+	/**
+	 * Opens the catalog in a directory, creating it if needed
+	 * 
+	 * @throws IOException
+	 *             if the catalog cannot be read or is open elsewhere
+	 */
+	public static FileCatalog open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		FileChannel log = FileChannel.open(directory.resolve(LOG_NAME), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			return new FileCatalog(directory, log);
+		} catch (IOException e) {
+			log.close();
+			throw e;
+		} catch (RuntimeException e) {
+			log.close();
+			throw e;
+		}
+	}
+
+	private FileCatalog(Path directory, FileChannel log) throws IOException {
+		_directory = directory;
+		_log = log;
+		try {
+			_fileLock = log.tryLock();
+		} catch (OverlappingFileLockException e) {
+			throw new IOException("Catalog " + directory + " is already open", e);
+		}
+		if (_fileLock == null) {
+			throw new IOException("Catalog " + directory + " is open in another process");
+		}
+		if (log.size() == 0) {
+			writeFully(ByteBuffer.wrap(LOG_MAGIC), 0);
+		}
+		ByteBuffer magic = ByteBuffer.allocate(LOG_MAGIC.length);
+		if (!readFully(magic, 0) || !Arrays.equals(magic.array(), LOG_MAGIC)) {
+			throw new IOException("File " + directory.resolve(LOG_NAME) + " is not a catalog");
+		}
+		_indexedEnd = LOG_MAGIC.length;
+		Path indexPath = directory.resolve(INDEX_NAME);
+		if (Files.exists(indexPath)) {
+			MappedTable index = new MappedTable(indexPath, INDEX_HEADER_LENGTH,
+					INDEX_RECORD_LENGTH);
+			byte[] header = new byte[INDEX_HEADER_LENGTH];
+			index.getHeader(header);
+			ByteBuffer fields = ByteBuffer.wrap(header);
+			long indexedEnd = fields.getLong(8);
+			long count = fields.getLong(16);
+			if (!Arrays.equals(Arrays.copyOf(header, INDEX_MAGIC.length), INDEX_MAGIC)
+					|| index.getRecordCount() != 2 * count || indexedEnd < LOG_MAGIC.length
+					|| indexedEnd > log.size()) {
+				throw new IOException("File " + indexPath + " is damaged");
+			}
+			_index = index;
+			_indexCount = count;
+			_indexedEnd = indexedEnd;
+		}
+		_logSegments = mapLog(_indexedEnd);
+		recoverTail();
+	}
+
+	/**
+	 * Reads the entries after the indexed part of the log into the tail
+	 */
+	private void recoverTail() throws IOException {
+		long size = _log.size();
+		long position = _indexedEnd;
+		ByteBuffer length = ByteBuffer.allocate(4);
+		while (position < size) {
+			long room = SEGMENT_SIZE - (position & (SEGMENT_SIZE - 1));
+			length.clear();
+			if (room < 4 || (readFully(length, position) && length.getInt(0) == 0)) {
+				position += room; // padding
+				continue;
+			}
+			int recordLength = length.getInt(0);
+			if (length.hasRemaining() || recordLength < KEY || recordLength > room
+					|| position + recordLength > size) {
+				break; // partly written
+			}
+			ByteBuffer record = ByteBuffer.allocate(recordLength);
+			readFully(record, position);
+			byte[] key = Arrays.copyOfRange(record.array(), KEY, recordLength);
+			int accountLength = record.getShort(ACCOUNT_LENGTH) & 0xffff;
+			if (accountLength >= key.length || key[accountLength] != 0) {
+				break;
+			}
+			Entry entry = new Entry(new String(key, 0, accountLength, HttpCaller.UTF8_CHARSET),
+					new String(key, accountLength + 1, key.length - accountLength - 1,
+							HttpCaller.UTF8_CHARSET), record.getLong(SIZE), record
+							.getLong(CREATE_TIME), record.getLong(DELETE_TIME));
+			addToTail(new TailEntry(entry, key, position));
+			position += recordLength;
+		}
+		if (position < size) {
+			_log.truncate(position);
+		}
+		_logEnd = Math.min(position, size);
+	}
+
+	/**
+	 * Sets how many entries are held in memory before they are merged into
+	 * the index
+	 * 
+	 * @param mergeThreshold
+	 *            the number of entries, must be > 0
+	 */
+	public void setMergeThreshold(int mergeThreshold) {
+		if (mergeThreshold < 1) {
+			throw new IllegalArgumentException("mergeThreshold must be > 0");
+		}
+		_lock.lock();
+		try {
+			_mergeThreshold = mergeThreshold;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of entries in the catalog
+	 */
+	public long size() {
+		_lock.lock();
+		try {
+			return _indexCount + _tail.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a file to the catalog unless it has an entry with the same
+	 * account, uri, size and times
+	 * 
+	 * @param account
+	 *            the backup account holding the file, such as its account id
+	 * @param file
+	 *            the details of the file, from a listing or an upload
+	 * @return true if the entry was appended
+	 * @throws IllegalArgumentException
+	 *             if the account contains a NUL character, or the account or
+	 *             uri is longer than MAX_NAME_LENGTH bytes
+	 */
+	public boolean record(String account, FileDetails file) throws IOException {
+		Entry entry = new Entry(account, file);
+		byte[] key = makeKey(account, file.getUri());
+		_lock.lock();
+		try {
+			checkOpen();
+			if (contains(entry, key)) {
+				return false;
+			}
+			append(entry, key);
+			if (_tail.size() >= _mergeThreshold) {
+				merge();
+			}
+			return true;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the files of a listing that are not in the catalog yet
+	 * 
+	 * @return the number of entries appended
+	 * @see #record(String, FileDetails)
+	 */
+	public int recordAll(String account, Iterable<FileDetails> files) throws IOException {
+		int appended = 0;
+		for (FileDetails file : files) {
+			if (record(account, file)) {
+				appended++;
+			}
+		}
+		return appended;
+	}
+
+	/**
+	 * Forces the log to disk and merges the entries held in memory into the
+	 * index
+	 */
+	public void flush() throws IOException {
+		_lock.lock();
+		try {
+			checkOpen();
+			_log.force(false);
+			merge();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes and closes the catalog. Safe to call more than once.
+	 */
+	@Override
+	public void close() throws IOException {
+		_lock.lock();
+		try {
+			if (_closed) {
+				return;
+			}
+			try {
+				flush();
+			} finally {
+				_closed = true;
+				_logSegments = null;
+				_index = null;
+				_log.close(); // releases the file lock
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return every entry for the file, in the order recorded
+	 */
+	public List<Entry> get(String account, String uri) {
+		byte[] key = makeKey(account, uri);
+		long prefix = keyPrefix(key);
+		List<Entry> result = new ArrayList<Entry>();
+		_lock.lock();
+		try {
+			checkOpen();
+			for (long i = lowerBound(key, prefix); i < _indexCount
+					&& compareIndexedKey(i, key, prefix) == 0; i++) {
+				result.add(readEntry(_index.getLong(i, 8)));
+			}
+			List<TailEntry> tail = _tailByKey.get(account + '\0' + uri);
+			if (tail != null) {
+				for (TailEntry entry : tail) {
+					result.add(entry.entry);
+				}
+			}
+			return result;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return every entry for the account, ordered by uri and then in the
+	 *         order recorded
+	 */
+	public List<Entry> list(String account) {
+		byte[] start = makeKey(account, "");
+		long prefix = keyPrefix(start);
+		List<Entry> result = new ArrayList<Entry>();
+		_lock.lock();
+		try {
+			checkOpen();
+			for (long i = lowerBound(start, prefix); i < _indexCount
+					&& startsWith(_index.getLong(i, 8), start); i++) {
+				result.add(readEntry(_index.getLong(i, 8)));
+			}
+			List<TailEntry> tail = new ArrayList<TailEntry>();
+			for (TailEntry entry : _tail) {
+				if (entry.entry._account.equals(account)) {
+					tail.add(entry);
+				}
+			}
+			Collections.sort(tail, KEY_ORDER);
+			return mergeByUri(result, tail);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the files created in a range of time
+	 * 
+	 * @param fromSec
+	 *            the start of the range, in seconds since the epoch
+	 * @param toSec
+	 *            the end of the range, not included
+	 * @return the entries, ordered by create time and then in the order
+	 *         recorded
+	 */
+	public List<Entry> findCreatedBetween(long fromSec, long toSec) {
+		return findCreatedBetween(null, fromSec, toSec);
+	}
+
+	/**
+	 * Finds the files of one account created in a range of time
+	 * 
+	 * @param account
+	 *            the account, or null for all accounts
+	 * @see #findCreatedBetween(long, long)
+	 */
+	public List<Entry> findCreatedBetween(String account, long fromSec, long toSec) {
+		List<Entry> result = new ArrayList<Entry>();
+		_lock.lock();
+		try {
+			checkOpen();
+			long low = 0;
+			long high = _indexCount;
+			while (low < high) { // first record created at or after fromSec
+				long middle = (low + high) >>> 1;
+				if (_index.getLong(_indexCount + middle, 0) < fromSec) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			for (long i = low; i < _indexCount && _index.getLong(_indexCount + i, 0) < toSec; i++) {
+				long offset = _index.getLong(_indexCount + i, 8);
+				if (account == null || accountEquals(offset, account)) {
+					result.add(readEntry(offset));
+				}
+			}
+			List<TailEntry> tail = new ArrayList<TailEntry>();
+			for (TailEntry entry : _tail) {
+				long createTime = entry.entry._createTimeSec;
+				if (createTime >= fromSec && createTime < toSec
+						&& (account == null || entry.entry._account.equals(account))) {
+					tail.add(entry);
+				}
+			}
+			Collections.sort(tail, CREATE_TIME_ORDER);
+			List<Entry> merged = new ArrayList<Entry>(result.size() + tail.size());
+			int r = 0;
+			for (TailEntry entry : tail) {
+				while (r < result.size()
+						&& result.get(r)._createTimeSec <= entry.entry._createTimeSec) {
+					merged.add(result.get(r++));
+				}
+				merged.add(entry.entry);
+			}
+			merged.addAll(result.subList(r, result.size()));
+			return merged;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (_closed) {
+			throw new IllegalStateException("Catalog is closed");
+		}
+	}
+
+	private boolean contains(Entry entry, byte[] key) {
+		List<TailEntry> tail = _tailByKey.get(entry._account + '\0' + entry._uri);
+		if (tail != null) {
+			for (TailEntry other : tail) {
+				if (other.entry.equals(entry)) {
+					return true;
+				}
+			}
+		}
+		long prefix = keyPrefix(key);
+		for (long i = lowerBound(key, prefix); i < _indexCount
+				&& compareIndexedKey(i, key, prefix) == 0; i++) {
+			long offset = _index.getLong(i, 8);
+			if (logLong(offset + SIZE) == entry._size
+					&& logLong(offset + CREATE_TIME) == entry._createTimeSec
+					&& logLong(offset + DELETE_TIME) == entry._deleteTimeSec) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void append(Entry entry, byte[] key) throws IOException {
+		int accountLength = 0;
+		while (key[accountLength] != 0) {
+			accountLength++;
+		}
+		int recordLength = KEY + key.length;
+		ByteBuffer record = ByteBuffer.allocate(recordLength);
+		record.putInt(recordLength).putLong(entry._size).putLong(entry._createTimeSec).putLong(
+				entry._deleteTimeSec).putShort((short) accountLength).put(key);
+		record.flip();
+		long room = SEGMENT_SIZE - (_logEnd & (SEGMENT_SIZE - 1));
+		if (room < recordLength) {
+			writeFully(ByteBuffer.allocate((int) room), _logEnd);
+			_logEnd += room;
+		}
+		writeFully(record, _logEnd);
+		addToTail(new TailEntry(entry, key, _logEnd));
+		_logEnd += recordLength;
+	}
+
+	private void addToTail(TailEntry entry) {
+		_tail.add(entry);
+		String key = entry.entry._account + '\0' + entry.entry._uri;
+		List<TailEntry> sameKey = _tailByKey.get(key);
+		if (sameKey == null) {
+			sameKey = new ArrayList<TailEntry>(1);
+			_tailByKey.put(key, sameKey);
+		}
+		sameKey.add(entry);
+	}
+
+	/**
+	 * Writes a new index with the tail merged in, replaces the old one and
+	 * maps the log up to its end
+	 */
+	private void merge() throws IOException {
+		if (_tail.isEmpty()) {
+			return;
+		}
+		_log.force(false); // the index must not point past the log on disk
+		List<TailEntry> byKey = new ArrayList<TailEntry>(_tail);
+		Collections.sort(byKey, KEY_ORDER); // stable, so in the order appended
+		List<TailEntry> byTime = new ArrayList<TailEntry>(_tail);
+		Collections.sort(byTime, CREATE_TIME_ORDER);
+		long count = _indexCount + _tail.size();
+		Path indexPath = _directory.resolve(INDEX_NAME);
+		Path temp = _directory.resolve(INDEX_NAME + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files
+				.newOutputStream(temp), 1024 * 1024));
+		try {
+			out.write(INDEX_MAGIC);
+			out.writeLong(_logEnd);
+			out.writeLong(count);
+			out.writeLong(0);
+			long i = 0;
+			for (TailEntry entry : byKey) {
+				while (i < _indexCount && compareIndexedKey(i, entry.key, entry.prefix) <= 0) {
+					out.writeLong(_index.getLong(i, 0));
+					out.writeLong(_index.getLong(i, 8));
+					i++;
+				}
+				out.writeLong(entry.prefix);
+				out.writeLong(entry.offset);
+			}
+			for (; i < _indexCount; i++) {
+				out.writeLong(_index.getLong(i, 0));
+				out.writeLong(_index.getLong(i, 8));
+			}
+			i = 0;
+			for (TailEntry entry : byTime) {
+				while (i < _indexCount
+						&& _index.getLong(_indexCount + i, 0) <= entry.entry._createTimeSec) {
+					out.writeLong(_index.getLong(_indexCount + i, 0));
+					out.writeLong(_index.getLong(_indexCount + i, 8));
+					i++;
+				}
+				out.writeLong(entry.entry._createTimeSec);
+				out.writeLong(entry.offset);
+			}
+			for (; i < _indexCount; i++) {
+				out.writeLong(_index.getLong(_indexCount + i, 0));
+				out.writeLong(_index.getLong(_indexCount + i, 8));
+			}
+		} finally {
+			out.close();
+		}
+		FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE);
+		try {
+			written.force(true);
+		} finally {
+			written.close();
+		}
+		Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		_index = new MappedTable(indexPath, INDEX_HEADER_LENGTH, INDEX_RECORD_LENGTH);
+		_indexCount = count;
+		_logSegments = mapLog(_logEnd);
+		_indexedEnd = _logEnd;
+		_tail.clear();
+		_tailByKey.clear();
+	}
+
+	private MappedByteBuffer[] mapLog(long length) throws IOException {
+		int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+		MappedByteBuffer[] segments = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = (long) i << SEGMENT_BITS;
+			segments[i] = _log.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE,
+					length - start));
+		}
+		return segments;
+	}
+
+	/**
+	 * @return the first index record whose key is not less than key
+	 */
+	private long lowerBound(byte[] key, long prefix) {
+		long low = 0;
+		long high = _indexCount;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (compareIndexedKey(middle, key, prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private int compareIndexedKey(long record, byte[] key, long prefix) {
+		int result = Long.compareUnsigned(_index.getLong(record, 0), prefix);
+		if (result != 0) {
+			return result;
+		}
+		long offset = _index.getLong(record, 8);
+		MappedByteBuffer segment = _logSegments[(int) (offset >>> SEGMENT_BITS)];
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		int length = segment.getInt(position) - KEY;
+		int common = Math.min(length, key.length);
+		for (int i = 0; i < common; i++) {
+			result = (segment.get(position + KEY + i) & 0xff) - (key[i] & 0xff);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return length - key.length;
+	}
+
+	private boolean startsWith(long offset, byte[] start) {
+		MappedByteBuffer segment = _logSegments[(int) (offset >>> SEGMENT_BITS)];
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		if (segment.getInt(position) - KEY < start.length) {
+			return false;
+		}
+		for (int i = 0; i < start.length; i++) {
+			if (segment.get(position + KEY + i) != start[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean accountEquals(long offset, String account) {
+		byte[] bytes = account.getBytes(HttpCaller.UTF8_CHARSET);
+		MappedByteBuffer segment = _logSegments[(int) (offset >>> SEGMENT_BITS)];
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		if ((segment.getShort(position + ACCOUNT_LENGTH) & 0xffff) != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (segment.get(position + KEY + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long logLong(long position) {
+		return _logSegments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position
+				& (SEGMENT_SIZE - 1)));
+	}
+
+	private Entry readEntry(long offset) {
+		MappedByteBuffer segment = _logSegments[(int) (offset >>> SEGMENT_BITS)];
+		int position = (int) (offset & (SEGMENT_SIZE - 1));
+		byte[] key = new byte[segment.getInt(position) - KEY];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = segment.get(position + KEY + i);
+		}
+		int accountLength = segment.getShort(position + ACCOUNT_LENGTH) & 0xffff;
+		return new Entry(new String(key, 0, accountLength, HttpCaller.UTF8_CHARSET), new String(
+				key, accountLength + 1, key.length - accountLength - 1, HttpCaller.UTF8_CHARSET),
+				segment.getLong(position + SIZE), segment.getLong(position + CREATE_TIME), segment
+						.getLong(position + DELETE_TIME));
+	}
+
+	/**
+	 * Merges two lists of entries of one account, each ordered by uri
+	 */
+	private static List<Entry> mergeByUri(List<Entry> indexed, List<TailEntry> tail) {
+		if (tail.isEmpty()) {
+			return indexed;
+		}
+		List<Entry> merged = new ArrayList<Entry>(indexed.size() + tail.size());
+		int i = 0;
+		for (TailEntry entry : tail) {
+			while (i < indexed.size() && compareUtf8(indexed.get(i)._uri, entry.entry._uri) <= 0) {
+				merged.add(indexed.get(i++));
+			}
+			merged.add(entry.entry);
+		}
+		merged.addAll(indexed.subList(i, indexed.size()));
+		return merged;
+	}
+
+	/**
+	 * Compares strings by code point, which is the order of their UTF-8 bytes
+	 */
+	private static int compareUtf8(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int x = a.codePointAt(i);
+			int y = b.codePointAt(j);
+			if (x != y) {
+				return Integer.compare(x, y);
+			}
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return (a.length() - i) - (b.length() - j);
+	}
+
+	/**
+	 * @return the account and uri as UTF-8 joined by a NUL byte, which orders
+	 *         keys by account and then uri
+	 */
+	private static byte[] makeKey(String account, String uri) {
+		if (account.indexOf('\0') >= 0) {
+			throw new IllegalArgumentException("account must not contain NUL");
+		}
+		byte[] accountBytes = account.getBytes(HttpCaller.UTF8_CHARSET);
+		byte[] uriBytes = uri.getBytes(HttpCaller.UTF8_CHARSET);
+		if (accountBytes.length > MAX_NAME_LENGTH || uriBytes.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("account and uri must be at most "
+					+ MAX_NAME_LENGTH + " bytes");
+		}
+		byte[] key = Arrays.copyOf(accountBytes, accountBytes.length + 1 + uriBytes.length);
+		System.arraycopy(uriBytes, 0, key, accountBytes.length + 1, uriBytes.length);
+		return key;
+	}
+
+	/**
+	 * @return the first 8 bytes of the key, padded with zeros, which compare
+	 *         as unsigned longs in the same order as the keys
+	 */
+	private static long keyPrefix(byte[] key) {
+		long prefix = 0;
+		for (int i = 0; i < 8; i++) {
+			prefix = (prefix << 8) | (i < key.length ? key[i] & 0xff : 0);
+		}
+		return prefix;
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += _log.write(buffer, position);
+		}
+	}
+
+	/**
+	 * @return false if the end of the log came first
+	 */
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = _log.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A repeatable entity holding a file or a byte range of a file. Use it instead
+ * of org.apache.http.entity.FileEntity for uploads.
+ * 
+ * When written to a channel, or to a FileOutputStream, the data moves with
+ * FileChannel.transferTo() and never enters the Java heap. HttpClient only
+ * offers an OutputStream, so uploads read the file in large chunks into pooled
+ * buffers. Chunks are larger than the socket buffer, so HttpClient passes them
+ * straight to the socket instead of copying them into its session buffer, as
+ * happens with FileEntity's 4 KB chunks.
+ * 
+ * @see BackupApiCaller#put(String, org.apache.http.HttpEntity)
+ */
+public class FileChannelEntity extends AbstractHttpEntity {
+	public static final int CHUNK_SIZE = 2 * HttpCaller.SOCKET_BUFFER_SIZE;
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final ConcurrentLinkedQueue<byte[]> _bufferPool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger _pooledBufferCount = new AtomicInteger();
+
+	private final Path _path;
+	private final long _offset;
+	private final long _length;
+
+	/**
+	 * @param path
+	 *            the file to upload
+	 * @throws IOException
+	 *             if the size of the file cannot be read
+	 */
+	public FileChannelEntity(Path path) throws IOException {
+		this(path, 0, Files.size(path));
+	}
+
+	/**
+	 * @param path
+	 *            the file containing the data
+	 * @param offset
+	 *            the position of the first byte of the region
+	 * @param length
+	 *            the number of bytes in the region
+	 */
+	public FileChannelEntity(Path path, long offset, long length) {
+		if (path == null) {
+			throw new IllegalArgumentException("Path may not be null");
+		}
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Offset and length must be >= 0");
+		}
+		_path = path;
+		_offset = offset;
+		_length = length;
+		setContentType("application/octet-stream");
+	}
+
+	public Path getPath() {
+		return _path;
+	}
+
+	public long getOffset() {
+		return _offset;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return _length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		final FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ);
+		return new InputStream() {
+			private long _position = _offset;
+			private final long _end = _offset + _length;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (_position >= _end) {
+					return -1;
+				}
+				len = (int) Math.min(len, _end - _position);
+				int bytesRead = channel.read(ByteBuffer.wrap(b, off, len), _position);
+				if (bytesRead == -1) {
+					throw new IOException("File " + _path + " is shorter than expected");
+				}
+				_position += bytesRead;
+				return bytesRead;
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		if (outstream instanceof FileOutputStream) {
+			writeTo(((FileOutputStream) outstream).getChannel());
+			return;
+		}
+		FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ);
+		byte[] buffer = takeBuffer();
+		try {
+			ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+			long position = _offset;
+			long end = _offset + _length;
+			while (position < end) {
+				wrapper.clear();
+				wrapper.limit((int) Math.min(buffer.length, end - position));
+				int bytesRead = channel.read(wrapper, position);
+				if (bytesRead == -1) {
+					throw new IOException("File " + _path + " is shorter than expected");
+				}
+				outstream.write(buffer, 0, bytesRead);
+				position += bytesRead;
+			}
+			outstream.flush();
+		} finally {
+			returnBuffer(buffer);
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the data to a channel with FileChannel.transferTo(). The kernel
+	 * copies the data directly when the target is a socket or file channel.
+	 * 
+	 * @param target
+	 *            the channel receiving the data
+	 */
+	public void writeTo(WritableByteChannel target) throws IOException {
+		FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ);
+		try {
+			long position = _offset;
+			long end = _offset + _length;
+			while (position < end) {
+				long bytesWritten = channel.transferTo(position, end - position, target);
+				if (bytesWritten == 0 && position >= channel.size()) {
+					throw new IOException("File " + _path + " is shorter than expected");
+				}
+				position += bytesWritten;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	private static byte[] takeBuffer() {
+		byte[] buffer = _bufferPool.poll();
+		if (buffer == null) {
+			return new byte[CHUNK_SIZE];
+		}
+		_pooledBufferCount.decrementAndGet();
+		return buffer;
+	}
+
+	private static void returnBuffer(byte[] buffer) {
+		if (_pooledBufferCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			_bufferPool.offer(buffer);
+		} else {
+			_pooledBufferCount.decrementAndGet();
+		}
+	}
+}
@@ -14,14 +14,14 @@ import java.util.Date;
 public class FileDetails {
 	private final String _uri;
 	private final long _size;
-	private final Date _createTime;
-	private final Date _deleteTime;
+	private final long _createTimeSec;
+	private final long _deleteTimeSec;
 
 	public FileDetails(String uri, long size, long createTimeSec, long deleteTimeSec) {
 		_uri = uri;
 		_size = size;
-		_createTime = new Date(createTimeSec * 1000);
-		_deleteTime = new Date(deleteTimeSec * 1000);
+		_createTimeSec = createTimeSec;
+		_deleteTimeSec = deleteTimeSec;
 	}
 
 	/**
@@ -43,14 +43,29 @@ public class FileDetails {
 	 * @return the creation time of the file
 	 */
 	public Date getCreateTime() {
-		return _createTime;
+		return new Date(_createTimeSec * 1000);
+	}
+
+	/**
+	 * @return the creation time of the file, in seconds since the epoch
+	 */
+	public long getCreateTimeSec() {
+		return _createTimeSec;
 	}
 
 	/**
 	 * @return the time when the file will be automatically deleted
 	 */
 	public Date getDeleteTime() {
-		return _deleteTime;
+		return new Date(_deleteTimeSec * 1000);
+	}
+
+	/**
+	 * @return the time when the file will be automatically deleted, in seconds
+	 *         since the epoch
+	 */
+	public long getDeleteTimeSec() {
+		return _deleteTimeSec;
 	}
 
 	/**
@@ -60,14 +75,23 @@ public class FileDetails {
 	 */
 	public String toString() {
 		return String.format("FileDetails(uri=\"%s\",size=%d,createTime=%d,deleteTime=%d)", _uri,
-				_size, _createTime.getTime() / 1000L, _deleteTime.getTime() / 1000L);
+				_size, _createTimeSec, _deleteTimeSec);
 	}
 
 	public boolean equals(Object obj) {
-		return obj != null && obj.toString().equals(toString());
+		if (!(obj instanceof FileDetails)) {
+			return false;
+		}
+		FileDetails other = (FileDetails) obj;
+		return _size == other._size && _createTimeSec == other._createTimeSec
+				&& _deleteTimeSec == other._deleteTimeSec
+				&& (_uri == null ? other._uri == null : _uri.equals(other._uri));
 	}
 
 	public int hashCode() {
-		return toString().hashCode();
+		int hash = _uri == null ? 0 : _uri.hashCode();
+		hash = 31 * hash + (int) (_size ^ (_size >>> 32));
+		hash = 31 * hash + (int) (_createTimeSec ^ (_createTimeSec >>> 32));
+		return 31 * hash + (int) (_deleteTimeSec ^ (_deleteTimeSec >>> 32));
 	}
 }
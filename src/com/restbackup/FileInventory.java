@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds the details of many files in a few primitive arrays: one column each
+ * for size, create time and delete time, and the uris packed as UTF-8 into one
+ * byte array. A file takes about 28 bytes plus the length of its uri, rather
+ * than several objects, so inventories of millions of files stay small and
+ * cheap to collect.
+ * 
+ * After sort(), files are ordered by uri and indexOf() finds a uri by binary
+ * search. Not safe for use by several threads at once.
+ * 
+ * @see BackupApiCaller#listInventory()
+ */
+public class FileInventory implements Iterable<FileDetails> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int _count = 0;
+	private long[] _sizes;
+	private long[] _createTimes;
+	private long[] _deleteTimes;
+	/** File n's uri is _names[_nameStarts[n]] up to _names[_nameStarts[n + 1]] */
+	private int[] _nameStarts;
+	private byte[] _names;
+	private boolean _sorted = true;
+
+	public FileInventory() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the number of files to make room for
+	 */
+	public FileInventory(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must be >= 0");
+		}
+		_sizes = new long[capacity];
+		_createTimes = new long[capacity];
+		_deleteTimes = new long[capacity];
+		_nameStarts = new int[capacity + 1];
+		_names = new byte[(int) Math.min(capacity * 32L, Integer.MAX_VALUE - 8)];
+	}
+
+	/**
+	 * Makes an inventory of the files returned by an iterator, such as
+	 * BackupApiCaller.listIterator(), without holding them all as objects
+	 */
+	public static FileInventory from(Iterator<FileDetails> files) {
+		FileInventory inventory = new FileInventory();
+		while (files.hasNext()) {
+			inventory.add(files.next());
+		}
+		return inventory;
+	}
+
+	/**
+	 * @return the number of files
+	 */
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * Adds a file to the end of the inventory
+	 */
+	public void add(FileDetails file) {
+		add(file.getUri(), file.getSize(), file.getCreateTimeSec(), file.getDeleteTimeSec());
+	}
+
+	/**
+	 * Adds a file to the end of the inventory
+	 * 
+	 * @param uri
+	 *            the uri of the file, must not be null
+	 * @param size
+	 *            the size in bytes
+	 * @param createTimeSec
+	 *            the creation time, in seconds since the epoch
+	 * @param deleteTimeSec
+	 *            the deletion time, in seconds since the epoch
+	 */
+	public void add(String uri, long size, long createTimeSec, long deleteTimeSec) {
+		byte[] name = uri.getBytes(StandardCharsets.UTF_8);
+		if (_count == _sizes.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, _count + (_count >> 1));
+			_sizes = Arrays.copyOf(_sizes, capacity);
+			_createTimes = Arrays.copyOf(_createTimes, capacity);
+			_deleteTimes = Arrays.copyOf(_deleteTimes, capacity);
+			_nameStarts = Arrays.copyOf(_nameStarts, capacity + 1);
+		}
+		int start = _nameStarts[_count];
+		if (name.length > Integer.MAX_VALUE - 8 - start) {
+			throw new IllegalStateException("Inventory uris exceed 2 GB");
+		}
+		if (start + name.length > _names.length) {
+			long grown = Math.max(start + name.length, (long) _names.length + (_names.length >> 1));
+			_names = Arrays.copyOf(_names, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+		}
+		System.arraycopy(name, 0, _names, start, name.length);
+		_sizes[_count] = size;
+		_createTimes[_count] = createTimeSec;
+		_deleteTimes[_count] = deleteTimeSec;
+		_nameStarts[_count + 1] = start + name.length;
+		if (_sorted && _count > 0 && compareNames(_count - 1, _count) > 0) {
+			_sorted = false;
+		}
+		_count++;
+	}
+
+	/**
+	 * @return the uri of file number index
+	 */
+	public String getUri(int index) {
+		checkIndex(index);
+		int start = _nameStarts[index];
+		return new String(_names, start, _nameStarts[index + 1] - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the size in bytes of file number index
+	 */
+	public long getSize(int index) {
+		checkIndex(index);
+		return _sizes[index];
+	}
+
+	/**
+	 * @return the creation time of file number index, in seconds since the
+	 *         epoch
+	 */
+	public long getCreateTimeSec(int index) {
+		checkIndex(index);
+		return _createTimes[index];
+	}
+
+	/**
+	 * @return the deletion time of file number index, in seconds since the
+	 *         epoch
+	 */
+	public long getDeleteTimeSec(int index) {
+		checkIndex(index);
+		return _deleteTimes[index];
+	}
+
+	/**
+	 * @return a new object with the details of file number index
+	 */
+	public FileDetails get(int index) {
+		return new FileDetails(getUri(index), _sizes[index], _createTimes[index],
+				_deleteTimes[index]);
+	}
+
+	/**
+	 * @return the sum of the sizes of all files
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for (int n = 0; n < _count; n++) {
+			total += _sizes[n];
+		}
+		return total;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= _count) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + _count);
+		}
+	}
+
+	/**
+	 * Orders the files by uri, comparing the UTF-8 bytes, which orders them
+	 * by Unicode code point. Files with the same uri keep their order.
+	 */
+	public void sort() {
+		if (_sorted) {
+			return;
+		}
+		int[] order = new int[_count];
+		for (int n = 0; n < _count; n++) {
+			order[n] = n;
+		}
+		mergeSort(order, new int[_count], 0, _count);
+		reorder(order, _count);
+		_sorted = true;
+	}
+
+	/**
+	 * Sorts, then removes each file with the same uri, size and times as an
+	 * earlier file
+	 * 
+	 * @return the number of files removed
+	 */
+	public int removeDuplicates() {
+		sort();
+		int[] keep = new int[_count];
+		int kept = 0;
+		int runStart = 0; // the first kept file with the current uri
+		for (int n = 0; n < _count; n++) {
+			if (kept > 0 && compareNames(keep[kept - 1], n) != 0) {
+				runStart = kept;
+			}
+			boolean duplicate = false;
+			for (int k = runStart; k < kept && !duplicate; k++) {
+				duplicate = isSameFile(keep[k], n);
+			}
+			if (!duplicate) {
+				keep[kept++] = n;
+			}
+		}
+		int removed = _count - kept;
+		if (removed > 0) {
+			reorder(keep, kept);
+		}
+		return removed;
+	}
+
+	/**
+	 * Finds a file by uri, sorting first if needed
+	 * 
+	 * @return the index of the first file with the uri, or -1 if there is none
+	 */
+	public int indexOf(String uri) {
+		sort();
+		byte[] key = uri.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = _count;
+		while (low < high) { // first index whose name is >= key
+			int mid = (low + high) >>> 1;
+			if (compareName(mid, key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low < _count && compareName(low, key) == 0 ? low : -1;
+	}
+
+	/**
+	 * @return true if a file has the uri
+	 */
+	public boolean contains(String uri) {
+		return indexOf(uri) >= 0;
+	}
+
+	@Override
+	public Iterator<FileDetails> iterator() {
+		return new Iterator<FileDetails>() {
+			private int _next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return _next < _count;
+			}
+
+			@Override
+			public FileDetails next() {
+				if (_next >= _count) {
+					throw new NoSuchElementException();
+				}
+				return get(_next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private boolean isSameFile(int a, int b) {
+		return _sizes[a] == _sizes[b] && _createTimes[a] == _createTimes[b]
+				&& _deleteTimes[a] == _deleteTimes[b] && compareNames(a, b) == 0;
+	}
+
+	private int compareNames(int a, int b) {
+		int aStart = _nameStarts[a];
+		int aLength = _nameStarts[a + 1] - aStart;
+		int bStart = _nameStarts[b];
+		int bLength = _nameStarts[b + 1] - bStart;
+		return Arrays.compareUnsigned(_names, aStart, aStart + aLength, _names, bStart, bStart
+				+ bLength);
+	}
+
+	private int compareName(int index, byte[] key) {
+		return Arrays.compareUnsigned(_names, _nameStarts[index], _nameStarts[index + 1], key, 0,
+				key.length);
+	}
+
+	private void mergeSort(int[] order, int[] scratch, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(order, scratch, from, mid);
+		mergeSort(order, scratch, mid, to);
+		if (compareNames(order[mid - 1], order[mid]) <= 0) {
+			return; // already in order
+		}
+		System.arraycopy(order, from, scratch, from, to - from);
+		int left = from;
+		int right = mid;
+		for (int n = from; n < to; n++) {
+			if (right >= to || (left < mid && compareNames(scratch[left], scratch[right]) <= 0)) {
+				order[n] = scratch[left++];
+			} else {
+				order[n] = scratch[right++];
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the columns with the first count files listed in order
+	 */
+	private void reorder(int[] order, int count) {
+		int capacity = Math.max(count, INITIAL_CAPACITY);
+		long[] sizes = new long[capacity];
+		long[] createTimes = new long[capacity];
+		long[] deleteTimes = new long[capacity];
+		int[] nameStarts = new int[capacity + 1];
+		byte[] names = new byte[_nameStarts[_count]];
+		int nameEnd = 0;
+		for (int n = 0; n < count; n++) {
+			int from = order[n];
+			sizes[n] = _sizes[from];
+			createTimes[n] = _createTimes[from];
+			deleteTimes[n] = _deleteTimes[from];
+			int length = _nameStarts[from + 1] - _nameStarts[from];
+			System.arraycopy(_names, _nameStarts[from], names, nameEnd, length);
+			nameEnd += length;
+			nameStarts[n + 1] = nameEnd;
+		}
+		_sizes = sizes;
+		_createTimes = createTimes;
+		_deleteTimes = deleteTimes;
+		_nameStarts = nameStarts;
+		_names = names;
+		_count = count;
+	}
+}
@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Records the state of each file at its last backup: size, modification time,
+ * inode, upload time and SHA-256 digest. The index is a table of fixed-length
+ * records sorted by a hash of the relative path. It is memory-mapped and
+ * searched in place, so opening it takes the same time for any number of
+ * entries. A Writer builds a new index without holding every entry in
+ * memory.
+ * 
+ * @see IncrementalBackup
+ */
+public class FileStateIndex {
+	private static final byte[] MAGIC = { 'R', 'B', 'F', 'S', 'I', 'D', 'X', '1' };
+	private static final int HEADER_LENGTH = MAGIC.length;
+	private static final int PATH_HASH = 0; // two longs
+	private static final int SIZE = 16;
+	private static final int MODIFIED_TIME = 24;
+	private static final int INODE = 32;
+	private static final int UPLOAD_TIME = 40;
+	private static final int SHA256 = 48;
+	private static final int RECORD_LENGTH = 80;
+
+	/**
+	 * The state of one file
+	 */
+	public static class Entry {
+		private final long _pathHashHigh;
+		private final long _pathHashLow;
+		private final long _size;
+		private final long _modifiedTimeMillis;
+		private final long _inode;
+		private final long _uploadTimeMillis;
+		private final byte[] _sha256;
+
+		/**
+		 * @param relativePath
+		 *            the path of the file below the backup root, with '/'
+		 *            separators
+		 * @param sha256
+		 *            the 32 byte digest of the file contents
+		 */
+		public Entry(String relativePath, long size, long modifiedTimeMillis, long inode,
+				long uploadTimeMillis, byte[] sha256) {
+			this(hashPath(relativePath), size, modifiedTimeMillis, inode, uploadTimeMillis,
+					sha256);
+		}
+
+		private Entry(long[] pathHash, long size, long modifiedTimeMillis, long inode,
+				long uploadTimeMillis, byte[] sha256) {
+			if (sha256.length != 32) {
+				throw new IllegalArgumentException("sha256 must have 32 bytes");
+			}
+			_pathHashHigh = pathHash[0];
+			_pathHashLow = pathHash[1];
+			_size = size;
+			_modifiedTimeMillis = modifiedTimeMillis;
+			_inode = inode;
+			_uploadTimeMillis = uploadTimeMillis;
+			_sha256 = sha256.clone();
+		}
+
+		public long getSize() {
+			return _size;
+		}
+
+		public long getModifiedTimeMillis() {
+			return _modifiedTimeMillis;
+		}
+
+		/**
+		 * @return a hash of the file system's key for the file, or 0 if the
+		 *         file system has none
+		 */
+		public long getInode() {
+			return _inode;
+		}
+
+		public long getUploadTimeMillis() {
+			return _uploadTimeMillis;
+		}
+
+		public byte[] getSha256() {
+			return _sha256.clone();
+		}
+
+		/**
+		 * @return true if the file still has the recorded size, modification
+		 *         time and inode
+		 */
+		public boolean matches(long size, long modifiedTimeMillis, long inode) {
+			return _size == size && _modifiedTimeMillis == modifiedTimeMillis && _inode == inode;
+		}
+	}
+
+	private static final Comparator<Entry> PATH_HASH_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int result = Long.compare(a._pathHashHigh, b._pathHashHigh);
+			return result != 0 ? result : Long.compare(a._pathHashLow, b._pathHashLow);
+		}
+	};
+
+	private final MappedTable _table;
+
+	private FileStateIndex(MappedTable table) {
+		_table = table;
+	}
+
+	/**
+	 * Maps an index file. A missing file is an empty index.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not an index
+	 */
+	public static FileStateIndex open(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return new FileStateIndex(null);
+		}
+		MappedTable table = new MappedTable(path, HEADER_LENGTH, RECORD_LENGTH);
+		byte[] header = new byte[HEADER_LENGTH];
+		table.getHeader(header);
+		if (!Arrays.equals(header, MAGIC)) {
+			throw new IOException("File " + path + " is not a file state index");
+		}
+		return new FileStateIndex(table);
+	}
+
+	/**
+	 * @return the number of files in the index
+	 */
+	public long size() {
+		return _table == null ? 0 : _table.getRecordCount();
+	}
+
+	/**
+	 * Finds the state of a file by binary search
+	 * 
+	 * @param relativePath
+	 *            the path of the file below the backup root, with '/'
+	 *            separators
+	 * @return the recorded state, or null if the file is not in the index
+	 */
+	public Entry get(String relativePath) {
+		if (_table == null) {
+			return null;
+		}
+		long[] hash = hashPath(relativePath);
+		long low = 0;
+		long high = _table.getRecordCount() - 1;
+		while (low <= high) {
+			long middle = (low + high) >>> 1;
+			int result = Long.compare(_table.getLong(middle, PATH_HASH), hash[0]);
+			if (result == 0) {
+				result = Long.compare(_table.getLong(middle, PATH_HASH + 8), hash[1]);
+			}
+			if (result < 0) {
+				low = middle + 1;
+			} else if (result > 0) {
+				high = middle - 1;
+			} else {
+				return readEntry(middle);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads every entry of the index
+	 * 
+	 * @return the entries in the order of their path hashes
+	 */
+	public List<Entry> getEntries() {
+		long count = size();
+		List<Entry> entries = new ArrayList<Entry>((int) Math.min(count, Integer.MAX_VALUE));
+		for (long i = 0; i < count; i++) {
+			entries.add(readEntry(i));
+		}
+		return entries;
+	}
+
+	private Entry readEntry(long record) {
+		byte[] sha256 = new byte[32];
+		_table.getBytes(record, SHA256, sha256);
+		return new Entry(new long[] { _table.getLong(record, PATH_HASH),
+				_table.getLong(record, PATH_HASH + 8) }, _table.getLong(record, SIZE), _table
+				.getLong(record, MODIFIED_TIME), _table.getLong(record, INODE), _table.getLong(
+				record, UPLOAD_TIME), sha256);
+	}
+
+	/**
+	 * Writes a new index and atomically replaces the file. Indexes opened
+	 * earlier keep reading the old data.
+	 * 
+	 * @param path
+	 *            the index file
+	 * @param entries
+	 *            the state of every file, in any order. If several entries
+	 *            have the same path, the last one is kept.
+	 */
+	public static void write(Path path, Collection<Entry> entries) throws IOException {
+		Writer writer = new Writer(path, Integer.MAX_VALUE); // already in memory
+		try {
+			for (Entry entry : entries) {
+				writer.add(entry);
+			}
+			writer.commit(null);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes a new index from entries added one at a time. At most runLength
+	 * entries are held in memory; each full batch is sorted and spilled to a
+	 * temporary file next to the index, and commit() merges the batches.
+	 * Close the writer to delete the temporary files.
+	 */
+	public static class Writer implements Closeable {
+		static final int DEFAULT_RUN_LENGTH = 64 * 1024;
+
+		private final Path _path;
+		private final int _runLength;
+		private final List<Entry> _buffer = new ArrayList<Entry>();
+		private final List<Path> _runs = new ArrayList<Path>();
+
+		/**
+		 * @param path
+		 *            the index file to replace on commit()
+		 */
+		public Writer(Path path) {
+			this(path, DEFAULT_RUN_LENGTH);
+		}
+
+		Writer(Path path, int runLength) {
+			if (runLength < 1) {
+				throw new IllegalArgumentException("runLength must be > 0");
+			}
+			_path = path;
+			_runLength = runLength;
+		}
+
+		/**
+		 * Adds the state of a file. A later entry for the same path replaces
+		 * an earlier one.
+		 */
+		public void add(Entry entry) throws IOException {
+			_buffer.add(entry);
+			if (_buffer.size() >= _runLength) {
+				spill();
+			}
+		}
+
+		private void spill() throws IOException {
+			Path run = Files.createTempFile(_path.toAbsolutePath().getParent(), _path
+					.getFileName() + ".", ".run");
+			_runs.add(run);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files
+					.newOutputStream(run), 1024 * 1024));
+			try {
+				for (Entry entry : sortedUnique(_buffer)) {
+					writeEntry(out, entry);
+				}
+			} finally {
+				out.close();
+			}
+			_buffer.clear();
+		}
+
+		/**
+		 * Merges the added entries with the entries of base and atomically
+		 * replaces the index file. An added entry replaces the entry of base
+		 * with the same path. Indexes opened earlier keep reading the old
+		 * data.
+		 * 
+		 * @param base
+		 *            the index whose entries to keep, or null for none
+		 */
+		public void commit(FileStateIndex base) throws IOException {
+			List<Source> sources = new ArrayList<Source>();
+			try {
+				if (base != null && base._table != null) {
+					sources.add(new IndexSource(base, 0));
+				}
+				for (Path run : _runs) {
+					sources.add(new RunSource(run, sources.size()));
+				}
+				sources.add(new ListSource(sortedUnique(_buffer), sources.size()));
+				Path temp = _path.resolveSibling(_path.getFileName() + ".tmp");
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files
+						.newOutputStream(temp), 1024 * 1024));
+				try {
+					out.write(MAGIC);
+					merge(sources, out);
+				} finally {
+					out.close();
+				}
+				Files.move(temp, _path, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				for (Source source : sources) {
+					source.close();
+				}
+			}
+		}
+
+		/**
+		 * Deletes the temporary files. The index file is left as it is unless
+		 * commit() was called.
+		 */
+		@Override
+		public void close() throws IOException {
+			_buffer.clear();
+			for (Path run : _runs) {
+				Files.deleteIfExists(run);
+			}
+			_runs.clear();
+		}
+	}
+
+	/**
+	 * Sorts the entries by path hash, keeping the last entry of each path
+	 */
+	private static List<Entry> sortedUnique(List<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, PATH_HASH_ORDER); // stable
+		for (int i = sorted.size() - 1; i > 0; i--) {
+			if (PATH_HASH_ORDER.compare(sorted.get(i - 1), sorted.get(i)) == 0) {
+				sorted.set(i - 1, sorted.get(i));
+				sorted.set(i, null);
+			}
+		}
+		sorted.removeAll(Collections.singleton(null));
+		return sorted;
+	}
+
+	/**
+	 * Writes the entries of the sources in path hash order. Of the entries
+	 * with the same path, the one from the source of highest priority is
+	 * written.
+	 */
+	private static void merge(List<Source> sources, DataOutputStream out) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>(sources.size() + 1,
+				new Comparator<Source>() {
+					@Override
+					public int compare(Source a, Source b) {
+						int result = PATH_HASH_ORDER.compare(a._current, b._current);
+						return result != 0 ? result : Integer.compare(b._priority, a._priority);
+					}
+				});
+		for (Source source : sources) {
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+		while (!queue.isEmpty()) {
+			Source first = queue.poll();
+			Entry entry = first._current;
+			writeEntry(out, entry);
+			if (first.advance()) {
+				queue.add(first);
+			}
+			while (!queue.isEmpty() && PATH_HASH_ORDER.compare(queue.peek()._current, entry) == 0) {
+				Source replaced = queue.poll();
+				if (replaced.advance()) {
+					queue.add(replaced);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A sequence of entries sorted by path hash, one for each path
+	 */
+	private static abstract class Source {
+		final int _priority;
+		Entry _current = null;
+
+		Source(int priority) {
+			_priority = priority;
+		}
+
+		/**
+		 * Moves to the next entry
+		 * 
+		 * @return false at the end
+		 */
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	private static class ListSource extends Source {
+		private final List<Entry> _entries;
+		private int _next = 0;
+
+		ListSource(List<Entry> entries, int priority) {
+			super(priority);
+			_entries = entries;
+		}
+
+		@Override
+		boolean advance() {
+			_current = _next < _entries.size() ? _entries.get(_next++) : null;
+			return _current != null;
+		}
+	}
+
+	private static class IndexSource extends Source {
+		private final FileStateIndex _index;
+		private long _next = 0;
+
+		IndexSource(FileStateIndex index, int priority) {
+			super(priority);
+			_index = index;
+		}
+
+		@Override
+		boolean advance() {
+			_current = _next < _index.size() ? _index.readEntry(_next++) : null;
+			return _current != null;
+		}
+	}
+
+	private static class RunSource extends Source {
+		private final DataInputStream _in;
+		private long _remaining;
+
+		RunSource(Path run, int priority) throws IOException {
+			super(priority);
+			_remaining = Files.size(run) / RECORD_LENGTH;
+			_in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run),
+					64 * 1024));
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			if (_remaining == 0) {
+				_current = null;
+				return false;
+			}
+			_remaining--;
+			long[] pathHash = { _in.readLong(), _in.readLong() };
+			long size = _in.readLong();
+			long modifiedTimeMillis = _in.readLong();
+			long inode = _in.readLong();
+			long uploadTimeMillis = _in.readLong();
+			byte[] sha256 = new byte[32];
+			_in.readFully(sha256);
+			_current = new Entry(pathHash, size, modifiedTimeMillis, inode, uploadTimeMillis,
+					sha256);
+			return true;
+		}
+
+		@Override
+		void close() throws IOException {
+			_in.close();
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeLong(entry._pathHashHigh);
+		out.writeLong(entry._pathHashLow);
+		out.writeLong(entry._size);
+		out.writeLong(entry._modifiedTimeMillis);
+		out.writeLong(entry._inode);
+		out.writeLong(entry._uploadTimeMillis);
+		out.write(entry._sha256);
+	}
+
+	/**
+	 * @return the first 128 bits of the SHA-256 digest of the path
+	 */
+	private static long[] hashPath(String relativePath) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer hash = ByteBuffer.wrap(digest.digest(relativePath
+					.getBytes(HttpCaller.UTF8_CHARSET)));
+			return new long[] { hash.getLong(), hash.getLong() };
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // should never happen
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes independent gzip members. Each member carries an extra
+ * header field with subfield id "RB" holding the size of the whole member and
+ * the size of the uncompressed data, so a reader can split a stream of members
+ * without inflating it. Any gzip reader can still read the concatenated
+ * members.
+ * 
+ * @see CompressingEntity
+ * @see DecompressingEntity
+ */
+class GzipMember {
+	/** Length of the header, including the extra field */
+	static final int HEADER_LENGTH = 24;
+	static final int TRAILER_LENGTH = 8;
+	private static final int XLEN = 12;
+	private static final int SUBFIELD_LENGTH = 8;
+	private static final int FEXTRA = 0x04;
+	/**
+	 * The longest member compress() writes for a block of
+	 * CompressingEntity.MAX_BLOCK_SIZE bytes. Stored deflate blocks add 5
+	 * bytes for every 65535 bytes of data.
+	 */
+	static final int MAX_MEMBER_LENGTH = HEADER_LENGTH + CompressingEntity.MAX_BLOCK_SIZE
+			+ 5 * (CompressingEntity.MAX_BLOCK_SIZE / 65535 + 1) + TRAILER_LENGTH;
+
+	private GzipMember() {
+	}
+
+	/**
+	 * Compresses the data into one gzip member
+	 * 
+	 * @param level
+	 *            the deflate level, Deflater.NO_COMPRESSION stores the data
+	 */
+	static byte[] compress(byte[] data, int level) {
+		if (data.length > CompressingEntity.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block is longer than MAX_BLOCK_SIZE");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+		out.write(new byte[HEADER_LENGTH], 0, HEADER_LENGTH);
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		writeIntLE(out, (int) crc.getValue());
+		writeIntLE(out, data.length);
+		byte[] member = out.toByteArray();
+		member[0] = (byte) 0x1f;
+		member[1] = (byte) 0x8b;
+		member[2] = 8; // deflate
+		member[3] = FEXTRA;
+		// bytes 4-7 MTIME and 8 XFL are zero
+		member[9] = (byte) 255; // unknown OS
+		putShortLE(member, 10, XLEN);
+		member[12] = 'R';
+		member[13] = 'B';
+		putShortLE(member, 14, SUBFIELD_LENGTH);
+		putIntLE(member, 16, member.length);
+		putIntLE(member, 20, data.length);
+		return member;
+	}
+
+	/**
+	 * Inflates one member and checks its CRC and size
+	 * 
+	 * @throws IOException
+	 *             if the member is corrupt or claims more than MAX_BLOCK_SIZE
+	 *             bytes of data
+	 */
+	static byte[] decompress(byte[] member) throws IOException {
+		if (!isHeader(member) || getIntLE(member, 16) != member.length) {
+			throw new IOException("Malformed gzip member");
+		}
+		int size = getIntLE(member, 20);
+		if (size < 0 || size > CompressingEntity.MAX_BLOCK_SIZE) {
+			throw new IOException("Gzip member claims " + size + " bytes of data");
+		}
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, HEADER_LENGTH, member.length - HEADER_LENGTH
+					- TRAILER_LENGTH);
+			int length = 0;
+			while (length < size) {
+				int count = inflater.inflate(data, length, size - length);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				length += count;
+			}
+			if (length != size || !inflater.finished()) {
+				throw new IOException("Gzip member has wrong size");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member", e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != getIntLE(member, member.length - TRAILER_LENGTH)
+				|| size != getIntLE(member, member.length - 4)) {
+			throw new IOException("Gzip member failed CRC check");
+		}
+		return data;
+	}
+
+	/**
+	 * @return true if the bytes start with a member header written by
+	 *         compress()
+	 */
+	static boolean isHeader(byte[] header) {
+		return header.length >= HEADER_LENGTH && (header[0] & 0xff) == 0x1f
+				&& (header[1] & 0xff) == 0x8b && header[2] == 8 && header[3] == FEXTRA
+				&& getShortLE(header, 10) == XLEN && header[12] == 'R' && header[13] == 'B'
+				&& getShortLE(header, 14) == SUBFIELD_LENGTH;
+	}
+
+	/**
+	 * Reads the next whole member from the stream
+	 * 
+	 * @return the member, or null at the end of the stream
+	 * @throws IOException
+	 *             if the stream holds something other than members, or a
+	 *             member longer than MAX_MEMBER_LENGTH
+	 */
+	static byte[] read(InputStream input) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int length = readFully(input, header, 0, HEADER_LENGTH);
+		if (length == 0) {
+			return null;
+		}
+		if (length < HEADER_LENGTH || !isHeader(header)) {
+			throw new IOException("Malformed gzip member header");
+		}
+		int memberLength = getIntLE(header, 16);
+		if (memberLength < HEADER_LENGTH + TRAILER_LENGTH || memberLength > MAX_MEMBER_LENGTH) {
+			throw new IOException("Malformed gzip member header");
+		}
+		byte[] member = new byte[memberLength];
+		System.arraycopy(header, 0, member, 0, HEADER_LENGTH);
+		int remaining = memberLength - HEADER_LENGTH;
+		if (readFully(input, member, HEADER_LENGTH, remaining) != remaining) {
+			throw new IOException("Truncated gzip member");
+		}
+		return member;
+	}
+
+	private static int readFully(InputStream input, byte[] b, int off, int len)
+			throws IOException {
+		int total = 0;
+		while (total < len) {
+			int bytesRead = input.read(b, off + total, len - total);
+			if (bytesRead == -1) {
+				break;
+			}
+			total += bytesRead;
+		}
+		return total;
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int value) {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static void putShortLE(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putIntLE(byte[] b, int off, int value) {
+		putShortLE(b, off, value);
+		putShortLE(b, off + 2, value >>> 16);
+	}
+
+	private static int getShortLE(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+
+	private static int getIntLE(byte[] b, int off) {
+		return getShortLE(b, off) | getShortLE(b, off + 2) << 16;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+
+/**
+ * Backs up a directory tree, uploading only files that are new or changed
+ * since the last run. The state of each file is kept in a FileStateIndex. A
+ * file is unchanged when its size, modification time and inode match the
+ * index.
+ * <p>
+ * Each upload is stored at a new uri ending in "@" and the upload time, since
+ * the backup service does not replace files. Files are uploaded again when
+ * their last upload is older than the refresh period, so a current copy
+ * survives the retention period of the account. Instantiate like this:
+ * 
+ * <pre>
+ * IncrementalBackup backup = new IncrementalBackup(backup_api, Paths.get(&quot;/var/cache/restbackup.idx&quot;), 30);
+ * IncrementalBackup.Summary summary = backup.run(Paths.get(&quot;/home&quot;), &quot;/home&quot;);
+ * String uri = backup.getUri(&quot;/home&quot;, &quot;alice/notes.txt&quot;);
+ * </pre>
+ * 
+ * @see FileStateIndex
+ */
+public class IncrementalBackup {
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+	private final BackupApiCaller _caller;
+	private final Path _indexPath;
+	private final long _refreshMillis;
+
+	/**
+	 * Counts the files handled by one run
+	 */
+	public static class Summary {
+		private long _uploadedFiles = 0;
+		private long _uploadedBytes = 0;
+		private long _unchangedFiles = 0;
+		private long _removedFiles = 0;
+
+		public long getUploadedFiles() {
+			return _uploadedFiles;
+		}
+
+		public long getUploadedBytes() {
+			return _uploadedBytes;
+		}
+
+		public long getUnchangedFiles() {
+			return _unchangedFiles;
+		}
+
+		/**
+		 * @return the number of files in the index that no longer exist
+		 */
+		public long getRemovedFiles() {
+			return _removedFiles;
+		}
+
+		public String toString() {
+			return String.format("Summary(uploadedFiles=%d,uploadedBytes=%d,unchangedFiles=%d,"
+					+ "removedFiles=%d)", _uploadedFiles, _uploadedBytes, _unchangedFiles,
+					_removedFiles);
+		}
+	}
+
+	/**
+	 * @param caller
+	 *            the backup account to upload to
+	 * @param indexPath
+	 *            the local file that holds the index. It is created by the
+	 *            first run.
+	 * @param refreshDays
+	 *            upload unchanged files again after this many days. Choose it
+	 *            well below the retention period of the account.
+	 */
+	public IncrementalBackup(BackupApiCaller caller, Path indexPath, int refreshDays) {
+		if (refreshDays < 1) {
+			throw new IllegalArgumentException("refreshDays must be > 0");
+		}
+		_caller = caller;
+		_indexPath = indexPath;
+		_refreshMillis = refreshDays * MILLIS_PER_DAY;
+	}
+
+	/**
+	 * Uploads the new and changed files below root and saves their state. If
+	 * an upload fails, the files uploaded so far are saved in the index
+	 * before the exception is thrown; an error saving the index then is
+	 * logged, so the exception of the upload is the one thrown. The entries
+	 * are spilled to temporary files next to the index, so memory use does
+	 * not grow with the number of files.
+	 * 
+	 * @param root
+	 *            the directory to back up
+	 * @param uriPrefix
+	 *            the beginning of the uri of every file, such as "/home", or
+	 *            "" to store files at the top level
+	 * @return counts of the files handled
+	 * @throws IOException
+	 *             if the index cannot be read or written
+	 * @throws RestBackupException
+	 *             if an upload fails
+	 */
+	public Summary run(final Path root, final String uriPrefix) throws IOException {
+		final FileStateIndex index = FileStateIndex.open(_indexPath);
+		final FileStateIndex.Writer entries = new FileStateIndex.Writer(_indexPath);
+		final Summary summary = new Summary();
+		final long now = System.currentTimeMillis();
+		final long[] previouslyIndexed = { 0 };
+		boolean finished = false;
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+						throws IOException {
+					if (!attrs.isRegularFile()) {
+						return FileVisitResult.CONTINUE;
+					}
+					String relativePath = relativePath(root, file);
+					long size = attrs.size();
+					long modifiedTime = attrs.lastModifiedTime().toMillis();
+					long inode = inode(attrs);
+					FileStateIndex.Entry entry = index.get(relativePath);
+					if (entry != null) {
+						previouslyIndexed[0]++;
+					}
+					if (entry != null && entry.matches(size, modifiedTime, inode)
+							&& now - entry.getUploadTimeMillis() < _refreshMillis) {
+						summary._unchangedFiles++;
+					} else {
+						DigestingEntity entity = new DigestingEntity(new FileChannelEntity(file));
+						_caller.put(makeUri(uriPrefix, relativePath, now), entity);
+						if (entity.getDigest() == null) {
+							throw new RestBackupException("File was not sent in full " + file);
+						}
+						entry = new FileStateIndex.Entry(relativePath, size, modifiedTime, inode,
+								now, parseHex(entity.getDigest().getSha256()));
+						summary._uploadedFiles++;
+						summary._uploadedBytes += size;
+					}
+					entries.add(entry);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					HttpCaller._log.warning("Skipping " + file + ": " + e.toString());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			finished = true;
+		} finally {
+			try {
+				if (finished) {
+					entries.commit(null);
+				} else { // keep the old state of the files not yet visited
+					try {
+						entries.commit(index);
+					} catch (IOException e) {
+						HttpCaller._log.log(Level.WARNING, "Error saving the index "
+								+ _indexPath, e);
+					}
+				}
+			} finally {
+				entries.close();
+			}
+		}
+		summary._removedFiles = index.size() - previouslyIndexed[0];
+		return summary;
+	}
+
+	/**
+	 * Finds the uri of the latest upload of a file
+	 * 
+	 * @param uriPrefix
+	 *            the prefix passed to run()
+	 * @param relativePath
+	 *            the path of the file below the root, with '/' separators
+	 * @return the uri, or null if the file is not in the index
+	 * @throws IOException
+	 *             if the index cannot be read
+	 */
+	public String getUri(String uriPrefix, String relativePath) throws IOException {
+		FileStateIndex.Entry entry = FileStateIndex.open(_indexPath).get(relativePath);
+		return entry == null ? null : makeUri(uriPrefix, relativePath, entry
+				.getUploadTimeMillis());
+	}
+
+	private static String makeUri(String uriPrefix, String relativePath, long uploadTimeMillis) {
+		return uriPrefix + "/" + HttpCaller.encodePath(relativePath) + "@" + uploadTimeMillis;
+	}
+
+	static String relativePath(Path root, Path file) {
+		StringBuilder result = new StringBuilder();
+		for (Path name : root.relativize(file)) {
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(name.toString());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash of the file key, or 0 if there is none
+	 */
+	static long inode(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		if (key == null) {
+			return 0;
+		}
+		long hash = 0xcbf29ce484222325L;
+		for (char c : key.toString().toCharArray()) {
+			hash ^= c;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static byte[] parseHex(String hex) {
+		byte[] result = new byte[hex.length() / 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return result;
+	}
+}
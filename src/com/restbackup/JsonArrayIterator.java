@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes the elements of a JSON array one at a time as they are read, so the
+ * memory used does not grow with the length of the array. Closes the reader at
+ * the end of the array. Call close() to stop early and release the reader.
+ * <p>
+ * Errors reading the array after the first element are thrown from hasNext()
+ * and next() as UncheckedIOException.
+ */
+public class JsonArrayIterator<T> implements Iterator<T>, Closeable {
+	/**
+	 * Decodes one element of an array
+	 */
+	public interface ElementReader<T> {
+		/**
+		 * @param reader
+		 *            a reader positioned at the start of an element
+		 * @return the element, after consuming all of it from the reader
+		 */
+		T read(JsonReader reader) throws IOException;
+	}
+
+	private final JsonReader _reader;
+	private final ElementReader<T> _elementReader;
+	private boolean _closed = false;
+
+	/**
+	 * Reads the start of the array
+	 * 
+	 * @param reader
+	 *            the JSON text, which must be an array
+	 * @param elementReader
+	 *            decodes each element
+	 * @throws IOException
+	 *             if the text does not start with an array. The reader is
+	 *             closed.
+	 */
+	public JsonArrayIterator(Reader reader, ElementReader<T> elementReader) throws IOException {
+		_reader = new JsonReader(reader);
+		_elementReader = elementReader;
+		try {
+			_reader.beginArray();
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) { // gson reports some syntax errors unchecked
+			close();
+			throw new IOException("Malformed JSON array", e);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (_closed) {
+			return false;
+		}
+		try {
+			if (_reader.peek() == JsonToken.END_ARRAY) {
+				_reader.endArray();
+				close();
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			closeQuietly();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			return _elementReader.read(_reader);
+		} catch (IOException e) {
+			closeQuietly();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the reader. Safe to call more than once.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!_closed) {
+			_closed = true;
+			_reader.close();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return a sequential stream of the remaining elements that closes this
+	 *         iterator when the stream is closed. Use it in a
+	 *         try-with-resources statement.
+	 */
+	public Stream<T> stream() {
+		Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(this,
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				closeQuietly();
+			}
+		});
+	}
+
+	/**
+	 * @return the next value as a string, or null if it is null
+	 */
+	static String nextStringOrNull(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	/**
+	 * @return the next value as a long, or defaultValue if it is null
+	 */
+	static long nextLongOrDefault(JsonReader reader, long defaultValue) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return defaultValue;
+		}
+		return reader.nextLong();
+	}
+
+	/**
+	 * @return the next value as an int, or defaultValue if it is null
+	 */
+	static int nextIntOrDefault(JsonReader reader, int defaultValue) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return defaultValue;
+		}
+		return reader.nextInt();
+	}
+}
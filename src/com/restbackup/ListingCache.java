@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the last listing of a backup account so that repeated calls to list()
+ * do not download it again. The first call fetches the listing; concurrent
+ * calls wait for that one fetch instead of starting their own. Once the
+ * listing is older than the time-to-live, a call returns it at once and
+ * starts one fetch in the background to replace it (stale-while-revalidate).
+ * Files uploaded through the caller are added to the cached listing until a
+ * fetch that started after the upload replaces them.
+ * 
+ * The cache is disabled until setTtl() is called with a positive value.
+ * 
+ * @see BackupApiCaller#getListingCache()
+ */
+public class ListingCache {
+	private static final Logger _log = Logger.getLogger(ListingCache.class.getName());
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private volatile long _ttlNanos = 0;
+	/** The last listing fetched, or null */
+	private List<FileDetails> _listing = null;
+	private long _fetchStartNanos = 0;
+	/** Files uploaded since, by uri, with the time of the upload */
+	private final Map<String, Inserted> _inserted = new LinkedHashMap<String, Inserted>();
+	private CompletableFuture<Collection<FileDetails>> _inFlight = null;
+	/** Counts calls to invalidate(), so fetches started before are not kept */
+	private long _generation = 0;
+
+	private static class Inserted {
+		final FileDetails details;
+		final long nanos;
+
+		Inserted(FileDetails details, long nanos) {
+			this.details = details;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * @return true if listings are cached
+	 */
+	public boolean isEnabled() {
+		return _ttlNanos > 0;
+	}
+
+	/**
+	 * Sets how long a listing is served before it is fetched again. Changing
+	 * the time-to-live keeps the cached listing.
+	 * 
+	 * @param ttl
+	 *            the time-to-live, or 0 to disable the cache and drop the
+	 *            cached listing
+	 * @param unit
+	 *            the unit of ttl
+	 */
+	public void setTtl(long ttl, TimeUnit unit) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("ttl must be >= 0");
+		}
+		_ttlNanos = unit.toNanos(ttl);
+		if (ttl == 0) {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Drops the cached listing, so the next call fetches it again
+	 */
+	public void invalidate() {
+		_lock.lock();
+		try {
+			_listing = null;
+			_inserted.clear();
+			_generation++;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a file to the cached listing, replacing any file with the same uri.
+	 * Does nothing while the cache is disabled.
+	 * 
+	 * @param details
+	 *            the file just uploaded
+	 */
+	public void insert(FileDetails details) {
+		if (!isEnabled()) {
+			return;
+		}
+		_lock.lock();
+		try {
+			_inserted.remove(details.getUri()); // keep upload order
+			_inserted.put(details.getUri(), new Inserted(details, System.nanoTime()));
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the cached listing, fetching it when there is none, and starts
+	 * a background fetch when it is stale. Calls fetch directly while the
+	 * cache is disabled.
+	 * 
+	 * @param fetch
+	 *            downloads the listing
+	 * @param background
+	 *            runs fetches of stale listings
+	 * @return the listing, with files uploaded since it was fetched
+	 * @throws RestBackupException
+	 *             if there was no listing and fetching it failed
+	 */
+	public Collection<FileDetails> get(Callable<Collection<FileDetails>> fetch,
+			Executor background) throws RestBackupException {
+		if (!isEnabled()) {
+			return call(fetch);
+		}
+		CompletableFuture<Collection<FileDetails>> future;
+		boolean owner = false;
+		_lock.lock();
+		try {
+			if (_listing != null) {
+				if (System.nanoTime() - _fetchStartNanos >= _ttlNanos && _inFlight == null) {
+					refreshInBackground(fetch, background);
+				}
+				return merged();
+			}
+			if (_inFlight == null) {
+				_inFlight = new CompletableFuture<Collection<FileDetails>>();
+				owner = true;
+			}
+			future = _inFlight;
+		} finally {
+			_lock.unlock();
+		}
+		if (owner) {
+			runFetch(fetch, future);
+		}
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestBackupException("Interrupted while waiting for the listing", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RestBackupException) {
+				throw (RestBackupException) e.getCause();
+			}
+			throw new RestBackupException(e.getCause());
+		}
+		_lock.lock();
+		try {
+			if (_listing == null) { // invalidated while fetching
+				return new ArrayList<FileDetails>(future.getNow(null));
+			}
+			return merged();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Called with the lock held
+	 */
+	private void refreshInBackground(final Callable<Collection<FileDetails>> fetch,
+			Executor background) {
+		final CompletableFuture<Collection<FileDetails>> future =
+				new CompletableFuture<Collection<FileDetails>>();
+		_inFlight = future;
+		try {
+			background.execute(new Runnable() {
+				@Override
+				public void run() {
+					runFetch(fetch, future);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			_inFlight = null; // try again on the next call
+		}
+	}
+
+	private void runFetch(Callable<Collection<FileDetails>> fetch,
+			CompletableFuture<Collection<FileDetails>> future) {
+		long startNanos = System.nanoTime();
+		long generation;
+		_lock.lock();
+		try {
+			generation = _generation;
+		} finally {
+			_lock.unlock();
+		}
+		Collection<FileDetails> listing;
+		try {
+			listing = fetch.call();
+		} catch (Exception e) {
+			_lock.lock();
+			try {
+				_inFlight = null;
+			} finally {
+				_lock.unlock();
+			}
+			_log.log(Level.INFO, "Fetching listing failed", e);
+			future.completeExceptionally(e);
+			return;
+		}
+		_lock.lock();
+		try {
+			_inFlight = null;
+			if (generation != _generation) {
+				return;
+			}
+			_listing = Collections.unmodifiableList(new ArrayList<FileDetails>(listing));
+			_fetchStartNanos = startNanos;
+			// the listing includes uploads that finished before it started
+			Iterator<Inserted> it = _inserted.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().nanos - startNanos < 0) {
+					it.remove();
+				}
+			}
+		} finally {
+			_lock.unlock();
+			future.complete(listing);
+		}
+	}
+
+	/**
+	 * Called with the lock held
+	 * 
+	 * @return a copy of the listing with the inserted files
+	 */
+	private List<FileDetails> merged() {
+		List<FileDetails> result = new ArrayList<FileDetails>(_listing.size() + _inserted.size());
+		for (FileDetails file : _listing) {
+			if (!_inserted.containsKey(file.getUri())) {
+				result.add(file);
+			}
+		}
+		for (Inserted inserted : _inserted.values()) {
+			result.add(inserted.details);
+		}
+		return result;
+	}
+
+	private static Collection<FileDetails> call(Callable<Collection<FileDetails>> fetch)
+			throws RestBackupException {
+		try {
+			return fetch.call();
+		} catch (RestBackupException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RestBackupException(e);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file of fixed-length records through memory maps, without parsing
+ * it first. The file is mapped in segments of whole records, so it may be
+ * larger than the 2 GB limit of a single map. Safe for concurrent readers.
+ * 
+ * @see FileStateIndex
+ */
+class MappedTable {
+	private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	private final int _headerLength;
+	private final int _recordLength;
+	private final long _recordCount;
+	private final long _recordsPerSegment;
+	private final MappedByteBuffer[] _segments;
+
+	/**
+	 * Maps the file read-only. The file may be closed or replaced afterwards.
+	 * 
+	 * @param path
+	 *            the file to map
+	 * @param headerLength
+	 *            the number of bytes before the first record
+	 * @param recordLength
+	 *            the number of bytes in each record
+	 * @throws IOException
+	 *             if the file cannot be mapped or holds a partial record
+	 */
+	MappedTable(Path path, int headerLength, int recordLength) throws IOException {
+		_headerLength = headerLength;
+		_recordLength = recordLength;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < headerLength || (size - headerLength) % recordLength != 0) {
+				throw new IOException("File " + path + " is truncated");
+			}
+			_recordCount = (size - headerLength) / recordLength;
+			_recordsPerSegment = MAX_SEGMENT_BYTES / recordLength;
+			int segmentCount = (int) ((_recordCount + _recordsPerSegment - 1) / _recordsPerSegment);
+			_segments = new MappedByteBuffer[Math.max(1, segmentCount)];
+			_segments[0] = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size,
+					headerLength + _recordsPerSegment * recordLength));
+			for (int i = 1; i < segmentCount; i++) {
+				long start = headerLength + i * _recordsPerSegment * recordLength;
+				_segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size
+						- start, _recordsPerSegment * recordLength));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Copies the bytes before the first record
+	 */
+	void getHeader(byte[] destination) {
+		for (int i = 0; i < destination.length; i++) {
+			destination[i] = _segments[0].get(i);
+		}
+	}
+
+	long getRecordCount() {
+		return _recordCount;
+	}
+
+	/**
+	 * Reads a field of a record
+	 * 
+	 * @param record
+	 *            the index of the record, starting at 0
+	 * @param offset
+	 *            the position of the field in the record
+	 */
+	long getLong(long record, int offset) {
+		int segment = (int) (record / _recordsPerSegment);
+		int position = (int) ((record % _recordsPerSegment) * _recordLength) + offset;
+		if (segment == 0) {
+			position += _headerLength;
+		}
+		return _segments[segment].getLong(position);
+	}
+
+	/**
+	 * Copies bytes of a record
+	 */
+	void getBytes(long record, int offset, byte[] destination) {
+		int segment = (int) (record / _recordsPerSegment);
+		int position = (int) ((record % _recordsPerSegment) * _recordLength) + offset;
+		if (segment == 0) {
+			position += _headerLength;
+		}
+		MappedByteBuffer buffer = _segments[segment];
+		for (int i = 0; i < destination.length; i++) {
+			destination[i] = buffer.get(position + i);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Describes a file that was uploaded as several separate parts. The manifest
+ * lists the uris of the parts in order and is stored at the uri of the file
+ * plus URI_SUFFIX, so it is never confused with an ordinary file. When there
+ * is no file at a uri, BackupApiCaller.get() looks for a manifest and returns
+ * the concatenated parts.
+ * 
+ * @see BackupApiCaller#putLarge(String, java.nio.file.Path)
+ * @see BackupApiCaller#get(String)
+ */
+public class MultipartManifest {
+	public static final String CONTENT_TYPE = "application/x-restbackup-manifest+json";
+	public static final int VERSION = 1;
+	/** The manifest of the file at a uri is stored at the uri plus this suffix */
+	public static final String URI_SUFFIX = ".restbackup-manifest";
+
+	/**
+	 * Holds the details of one part
+	 */
+	public static class Part {
+		public String uri = null;
+		public long size = -1;
+
+		public Part() {
+		};
+
+		public Part(String uri, long size) {
+			this.uri = uri;
+			this.size = size;
+		}
+	}
+
+	@SerializedName("restbackup-manifest")
+	private int _version = VERSION;
+	@SerializedName("size")
+	private long _size = 0;
+	@SerializedName("parts")
+	private List<Part> _parts = new ArrayList<Part>();
+
+	public MultipartManifest() {
+	}
+
+	/**
+	 * Appends a part to the end of the file
+	 */
+	public void addPart(String uri, long size) {
+		_parts.add(new Part(uri, size));
+		_size += size;
+	}
+
+	/**
+	 * @return the parts of the file, in order
+	 */
+	public List<Part> getParts() {
+		return _parts;
+	}
+
+	/**
+	 * @return the total size of the file in bytes
+	 */
+	public long getSize() {
+		return _size;
+	}
+
+	/**
+	 * @return the manifest as an entity ready for upload
+	 */
+	public HttpEntity toEntity() {
+		byte[] json = new Gson().toJson(this).getBytes(HttpCaller.UTF8_CHARSET);
+		ByteArrayEntity entity = new ByteArrayEntity(json);
+		entity.setContentType(CONTENT_TYPE);
+		return entity;
+	}
+
+	/**
+	 * Parses a manifest
+	 * 
+	 * @param input
+	 *            a stream positioned at the start of the manifest
+	 * @throws RestBackupException
+	 *             if the manifest is malformed
+	 */
+	public static MultipartManifest read(InputStream input) throws RestBackupException {
+		try {
+			Reader reader = new InputStreamReader(input, HttpCaller.UTF8_CHARSET);
+			MultipartManifest manifest = new Gson().fromJson(reader, MultipartManifest.class);
+			if (manifest == null || manifest._version != VERSION || manifest._parts == null) {
+				throw new RestBackupException("Unsupported manifest");
+			}
+			long size = 0;
+			for (Part part : manifest._parts) {
+				if (part.uri == null || part.size < 0) {
+					throw new RestBackupException("Malformed manifest part");
+				}
+				size += part.size;
+			}
+			if (size != manifest._size) {
+				throw new RestBackupException("Manifest size does not match its parts");
+			}
+			return manifest;
+		} catch (JsonParseException e) {
+			throw new RestBackupException("Malformed manifest", e);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * Sends requests with the non-blocking java.net.http client. Its selector
+ * thread and a handful of I/O threads drive any number of connections, so
+ * thousands of transfers can be in flight without a thread for each. Request
+ * bodies are read from the entity on the I/O threads as the connection
+ * accepts them; response bodies arrive as streams that the reader consumes.
+ * 
+ * One transport may be shared by many callers. The bandwidth and concurrency
+ * limiters apply only to the blocking http client, since waiting for them
+ * would block the I/O threads.
+ * 
+ * Like the read timeout of the blocking client, the timeout limits how long
+ * a request may go without progress, not how long it takes: an upload fails
+ * only when its body has not been read for that long, or when no response
+ * arrives that long after the body was sent, and a read of a response body
+ * fails when no data arrives for that long.
+ * 
+ * @see HttpCaller#setNioTransport(NioTransport)
+ */
+public class NioTransport {
+	public static final int DEFAULT_IO_THREADS = 4;
+
+	private final ExecutorService _ioExecutor;
+	private final HttpClient _client;
+	private final long _idleTimeoutMs;
+
+	/**
+	 * Makes a transport with DEFAULT_IO_THREADS threads
+	 */
+	public NioTransport() {
+		this(DEFAULT_IO_THREADS);
+	}
+
+	/**
+	 * @param ioThreads
+	 *            the number of threads that run the client's callbacks and
+	 *            read request bodies, must be > 0
+	 */
+	public NioTransport(int ioThreads) {
+		this(ioThreads, HttpCaller.READ_TIMEOUT_MS);
+	}
+
+	NioTransport(int ioThreads, long idleTimeoutMs) {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException("ioThreads must be > 0");
+		}
+		_idleTimeoutMs = idleTimeoutMs;
+		_ioExecutor = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "restbackup-nio");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		_client = HttpClient.newBuilder().executor(_ioExecutor)
+				.connectTimeout(Duration.ofMillis(HttpCaller.CONNECT_TIMEOUT_MS))
+				.followRedirects(HttpClient.Redirect.NEVER).version(HttpClient.Version.HTTP_1_1)
+				.build();
+	}
+
+	/**
+	 * Stops the I/O threads. Requests still in flight fail.
+	 */
+	public void shutdown() {
+		_ioExecutor.shutdownNow();
+	}
+
+	/**
+	 * Sends the request once to the caller's endpoint with its credentials
+	 * 
+	 * @param caller
+	 *            the caller making the request
+	 * @param request
+	 *            the request to send, with a uri like "/path/to/resource"
+	 * @return a future that completes with the response when its headers
+	 *         arrive, whatever the status code, or fails with the
+	 *         IOException of the connection
+	 */
+	public CompletableFuture<HttpResponse> execute(HttpCaller caller, HttpUriRequest request) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(caller.getScheme() + "://"
+				+ caller.getHost() + ":" + caller.getPort() + request.getRequestLine().getUri()));
+		builder.header("Authorization", caller._authorization.getValue());
+		builder.header("User-Agent", HttpCaller.HTTP_USER_AGENT);
+		for (Header header : request.getAllHeaders()) {
+			if (!isRestricted(header.getName())) {
+				builder.header(header.getName(), header.getValue());
+			}
+		}
+		HttpEntity entity = null;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			entity = ((HttpEntityEnclosingRequest) request).getEntity();
+		}
+		AtomicLong progressNanos = null;
+		if (entity == null) {
+			// covers only the wait for the response headers
+			builder.timeout(Duration.ofMillis(_idleTimeoutMs));
+			builder.method(request.getMethod(), BodyPublishers.noBody());
+		} else {
+			if (entity.getContentType() != null) {
+				builder.header("Content-Type", entity.getContentType().getValue());
+			}
+			progressNanos = new AtomicLong(System.nanoTime());
+			builder.method(request.getMethod(), makePublisher(entity, progressNanos));
+		}
+		CompletableFuture<java.net.http.HttpResponse<InputStream>> sent = _client.sendAsync(
+				builder.build(), BodyHandlers.ofInputStream());
+		if (progressNanos != null) {
+			sent = watchProgress(sent, progressNanos);
+		}
+		return sent.thenApply(
+				new Function<java.net.http.HttpResponse<InputStream>, HttpResponse>() {
+					@Override
+					public HttpResponse apply(java.net.http.HttpResponse<InputStream> response) {
+						return toHttpResponse(response);
+					}
+				});
+	}
+
+	/**
+	 * Headers the client sets itself and refuses to take from the request
+	 */
+	private static boolean isRestricted(String name) {
+		return name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length")
+				|| name.equalsIgnoreCase("Expect") || name.equalsIgnoreCase("Connection")
+				|| name.equalsIgnoreCase("Upgrade");
+	}
+
+	/**
+	 * Fails the exchange with an HttpTimeoutException once progressNanos is
+	 * older than the idle timeout. The request's own timeout would also count
+	 * the time spent sending the body.
+	 */
+	private CompletableFuture<java.net.http.HttpResponse<InputStream>> watchProgress(
+			final CompletableFuture<java.net.http.HttpResponse<InputStream>> sent,
+			AtomicLong progressNanos) {
+		final CompletableFuture<java.net.http.HttpResponse<InputStream>> result =
+				new CompletableFuture<java.net.http.HttpResponse<InputStream>>();
+		sent.whenComplete(new BiConsumer<java.net.http.HttpResponse<InputStream>, Throwable>() {
+			@Override
+			public void accept(java.net.http.HttpResponse<InputStream> response, Throwable t) {
+				if (t != null) {
+					result.completeExceptionally(t);
+				} else if (!result.complete(response)) { // timed out meanwhile
+					try {
+						response.body().close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		});
+		checkProgress(new IdleWatch(progressNanos) {
+			@Override
+			boolean isDone() {
+				return result.isDone();
+			}
+
+			@Override
+			void timeOut(long idleMs) {
+				if (result.completeExceptionally(new HttpTimeoutException("No progress for "
+						+ idleMs + " ms"))) {
+					sent.cancel(true);
+				}
+			}
+		}, _idleTimeoutMs);
+		return result;
+	}
+
+	/**
+	 * A transfer that notes the time of its last progress in progressNanos
+	 */
+	private static abstract class IdleWatch {
+		final AtomicLong _progressNanos;
+
+		IdleWatch(AtomicLong progressNanos) {
+			_progressNanos = progressNanos;
+		}
+
+		/**
+		 * @return true once there is nothing left to watch
+		 */
+		abstract boolean isDone();
+
+		/**
+		 * @return false while the idle time does not count, because the
+		 *         transfer is not waiting on the connection
+		 */
+		boolean isWaiting() {
+			return true;
+		}
+
+		/**
+		 * Fails the transfer after idleMs without progress
+		 */
+		abstract void timeOut(long idleMs);
+	}
+
+	private void checkProgress(final IdleWatch watch, long delayMs) {
+		CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, _ioExecutor).execute(
+				new Runnable() {
+					@Override
+					public void run() {
+						if (watch.isDone()) {
+							return;
+						}
+						long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+								- watch._progressNanos.get());
+						if (!watch.isWaiting()) {
+							checkProgress(watch, _idleTimeoutMs);
+						} else if (idleMs < _idleTimeoutMs) {
+							checkProgress(watch, _idleTimeoutMs - idleMs);
+						} else {
+							watch.timeOut(idleMs);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Makes a publisher that reads the entity's content again for each
+	 * attempt, and notes the time of each read in progressNanos. The entity
+	 * must be repeatable if the request may be retried.
+	 */
+	private static BodyPublisher makePublisher(final HttpEntity entity,
+			final AtomicLong progressNanos) {
+		BodyPublisher publisher = BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+			@Override
+			public InputStream get() {
+				progressNanos.set(System.nanoTime());
+				try {
+					return new FilterInputStream(entity.getContent()) {
+						@Override
+						public int read() throws IOException {
+							int b = in.read();
+							progressNanos.set(System.nanoTime());
+							return b;
+						}
+
+						@Override
+						public int read(byte[] b, int off, int len) throws IOException {
+							int bytesRead = in.read(b, off, len);
+							progressNanos.set(System.nanoTime());
+							return bytesRead;
+						}
+					};
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+		long length = entity.getContentLength();
+		return length < 0 ? publisher : BodyPublishers.fromPublisher(publisher, length);
+	}
+
+	/**
+	 * Converts the response into an httpcore response with a streaming entity,
+	 * so that the same code checks and reads the responses of both clients
+	 */
+	private HttpResponse toHttpResponse(java.net.http.HttpResponse<InputStream> response) {
+		int code = response.statusCode();
+		BasicHttpResponse result = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1,
+				code, EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ENGLISH)));
+		HttpHeaders headers = response.headers();
+		for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+			for (String value : header.getValue()) {
+				result.addHeader(header.getKey(), value);
+			}
+		}
+		long length = headers.firstValueAsLong("Content-Length").orElse(-1);
+		final WatchedInputStream body = new WatchedInputStream(response.body());
+		checkProgress(new IdleWatch(body._progressNanos) {
+			@Override
+			boolean isDone() {
+				return body._done;
+			}
+
+			@Override
+			boolean isWaiting() {
+				return body._reading;
+			}
+
+			@Override
+			void timeOut(long idleMs) {
+				body.timeOut(idleMs);
+			}
+		}, _idleTimeoutMs);
+		InputStreamEntity entity = new InputStreamEntity(body, length);
+		if (headers.firstValue("Content-Type").isPresent()) {
+			entity.setContentType(headers.firstValue("Content-Type").get());
+		}
+		result.setEntity(entity);
+		return result;
+	}
+
+	/**
+	 * A response body whose reads fail with a SocketTimeoutException once one
+	 * has waited the idle timeout for data, like reads from the blocking
+	 * client's socket. The time the reader spends between reads does not
+	 * count. Closing the body wakes the blocked read.
+	 */
+	private static class WatchedInputStream extends FilterInputStream {
+		final AtomicLong _progressNanos = new AtomicLong(System.nanoTime());
+		volatile boolean _reading;
+		volatile boolean _done;
+		private volatile long _timedOutMs = -1;
+
+		WatchedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			startRead();
+			try {
+				int b = in.read();
+				if (b == -1) {
+					_done = true;
+				}
+				return b;
+			} finally {
+				endRead();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			startRead();
+			try {
+				int bytesRead = in.read(b, off, len);
+				if (bytesRead == -1) {
+					_done = true;
+				}
+				return bytesRead;
+			} finally {
+				endRead();
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			startRead();
+			try {
+				return in.skip(n);
+			} finally {
+				endRead();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			_done = true;
+			in.close();
+		}
+
+		void timeOut(long idleMs) {
+			_timedOutMs = idleMs;
+			_done = true;
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void startRead() throws SocketTimeoutException {
+			checkTimedOut();
+			_progressNanos.set(System.nanoTime());
+			_reading = true;
+		}
+
+		/**
+		 * Replaces whatever the read returned or threw once the body has
+		 * timed out, since the read was cut short by closing the body
+		 */
+		private void endRead() throws SocketTimeoutException {
+			_reading = false;
+			_progressNanos.set(System.nanoTime());
+			checkTimedOut();
+		}
+
+		private void checkTimedOut() throws SocketTimeoutException {
+			if (_timedOutMs >= 0) {
+				throw new SocketTimeoutException("No data for " + _timedOutMs + " ms");
+			}
+		}
+	}
+
+	/**
+	 * @return the exception that made a future fail
+	 */
+	static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException)
+				&& t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (t instanceof UncheckedIOException) {
+			return t.getCause();
+		}
+		return t;
+	}
+}
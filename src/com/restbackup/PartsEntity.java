@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * An entity that downloads the parts listed in a manifest one after another
+ * and presents them as a single stream. Each call to getContent() starts a new
+ * download.
+ * 
+ * @see MultipartManifest
+ */
+public class PartsEntity extends AbstractHttpEntity {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final BackupApiCaller _caller;
+	private final MultipartManifest _manifest;
+
+	public PartsEntity(BackupApiCaller caller, MultipartManifest manifest) {
+		_caller = caller;
+		_manifest = manifest;
+		setContentType("application/octet-stream");
+	}
+
+	public MultipartManifest getManifest() {
+		return _manifest;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return _manifest.getSize();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new PartsInputStream(_manifest.getParts().iterator());
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	/**
+	 * Reads the parts in order, checking the size of each one
+	 */
+	private class PartsInputStream extends InputStream {
+		private final Iterator<MultipartManifest.Part> _parts;
+		private MultipartManifest.Part _part = null;
+		private InputStream _input = null;
+		private long _partBytesRead = 0;
+
+		PartsInputStream(Iterator<MultipartManifest.Part> parts) {
+			_parts = parts;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (true) {
+				if (_input == null) {
+					if (!_parts.hasNext()) {
+						return -1;
+					}
+					_part = _parts.next();
+					_partBytesRead = 0;
+					_input = _caller.get(_part.uri).getContent();
+				}
+				int bytesRead = _input.read(b, off, len);
+				if (bytesRead != -1) {
+					_partBytesRead += bytesRead;
+					if (_partBytesRead > _part.size) {
+						throw new RestBackupException("Part " + _part.uri + " is too long");
+					}
+					return bytesRead;
+				}
+				_input.close();
+				_input = null;
+				if (_partBytesRead != _part.size) {
+					throw new RestBackupException("Part " + _part.uri + " is too short");
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_input != null) {
+				_input.close();
+				_input = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders the files of a bulk restore
+ * 
+ * @see BackupApiCaller#restoreAll(java.util.Collection, java.nio.file.Path,
+ *      int, Comparator)
+ */
+public class RestoreOrder {
+	/**
+	 * Restores the largest files first, so the longest downloads start early
+	 * and the batch finishes sooner
+	 */
+	public static final Comparator<FileDetails> LARGEST_FIRST = new Comparator<FileDetails>() {
+		@Override
+		public int compare(FileDetails a, FileDetails b) {
+			return Long.compare(b.getSize(), a.getSize());
+		}
+	};
+
+	/**
+	 * Restores the smallest files first, so the most files are available
+	 * soonest
+	 */
+	public static final Comparator<FileDetails> SMALLEST_FIRST = new Comparator<FileDetails>() {
+		@Override
+		public int compare(FileDetails a, FileDetails b) {
+			return Long.compare(a.getSize(), b.getSize());
+		}
+	};
+
+	private RestoreOrder() {
+	}
+
+	/**
+	 * Restores the listed files first, in the order listed, and then the rest
+	 * of the files in the order of the fallback
+	 * 
+	 * @param uris
+	 *            the uris of the files needed first, such as the files needed
+	 *            to start a service
+	 * @param fallback
+	 *            the order of the files not listed
+	 */
+	public static Comparator<FileDetails> priorityFirst(List<String> uris,
+			final Comparator<FileDetails> fallback) {
+		final Map<String, Integer> ranks = new HashMap<String, Integer>();
+		for (String uri : uris) {
+			if (!ranks.containsKey(uri)) {
+				ranks.put(uri, ranks.size());
+			}
+		}
+		return new Comparator<FileDetails>() {
+			@Override
+			public int compare(FileDetails a, FileDetails b) {
+				Integer rankA = ranks.get(a.getUri());
+				Integer rankB = ranks.get(b.getUri());
+				if (rankA != null && rankB != null) {
+					return rankA.compareTo(rankB);
+				} else if (rankA != null) {
+					return -1;
+				} else if (rankB != null) {
+					return 1;
+				}
+				return fallback.compare(a, b);
+			}
+		};
+	}
+}
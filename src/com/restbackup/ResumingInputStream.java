@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Reads a file from the backup account, reopening the download with a Range
+ * request when the connection fails. Counts the bytes consumed so the new
+ * request starts at the first byte not yet read. Uses the caller's retry
+ * delays and gives up after getMaxRequestAttempts() consecutive attempts that
+ * read no data.
+ * 
+ * @see BackupApiCaller#get(String)
+ */
+public class ResumingInputStream extends InputStream {
+	private final HttpCaller _caller;
+	private final String _uri;
+	private final long _offset;
+	private final long _length;
+	private InputStream _input;
+	private long _position = 0;
+	private int _failedAttempts = 0;
+	private boolean _closed = false;
+
+	/**
+	 * @param caller
+	 *            the caller to use for reopening the download
+	 * @param uri
+	 *            the location of the file, such as "/previously-uploaded-file"
+	 * @param offset
+	 *            the position in the file of the first byte to read
+	 * @param length
+	 *            the number of bytes to read, or -1 to read to the end of the
+	 *            file
+	 * @param input
+	 *            the body of a response that starts at offset, or null to
+	 *            request it on the first read
+	 */
+	public ResumingInputStream(HttpCaller caller, String uri, long offset, long length,
+			InputStream input) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset must be >= 0");
+		}
+		_caller = caller;
+		_uri = uri;
+		_offset = offset;
+		_length = length;
+		_input = input;
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	public long getPosition() {
+		return _position;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (_closed) {
+			throw new IOException("Stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (_length >= 0 && _position >= _length) {
+			return -1;
+		}
+		while (true) {
+			try {
+				if (_input == null) {
+					_input = open();
+				}
+				int maxBytes = _length < 0 ? len : (int) Math.min(len, _length - _position);
+				int bytesRead = _input.read(b, off, maxBytes);
+				if (bytesRead == -1) {
+					if (_length < 0) {
+						return -1;
+					}
+					throw new IOException("Download of " + _uri + " ended early at byte "
+							+ (_offset + _position));
+				}
+				_position += bytesRead;
+				_failedAttempts = 0;
+				return bytesRead;
+			} catch (RestBackupException e) {
+				throw e;
+			} catch (IOException e) {
+				closeInput();
+				_failedAttempts++;
+				if (_failedAttempts >= _caller.getMaxRequestAttempts()) {
+					throw new RestBackupException("Download of " + _uri + " failed after "
+							+ _failedAttempts + " attempts", e);
+				}
+				HttpCaller._log.warning("Resuming download of " + _uri + " at byte "
+						+ (_offset + _position) + " after " + e.toString());
+				try {
+					Thread.sleep(HttpCaller.delayMillis(_failedAttempts));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while resuming download");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requests the rest of the range, starting at the first byte not yet read
+	 */
+	private InputStream open() throws IOException {
+		long start = _offset + _position;
+		String end = _length < 0 ? "" : String.valueOf(_offset + _length - 1);
+		HttpResponse response = _caller.doGet(_uri, new BasicHeader("Range", "bytes=" + start
+				+ "-" + end));
+		int code = response.getStatusLine().getStatusCode();
+		if (code == 200) { // server ignored the Range header
+			InputStream input = response.getEntity().getContent();
+			long skipped = 0;
+			while (skipped < start) {
+				long count = input.skip(start - skipped);
+				if (count <= 0) {
+					if (input.read() == -1) {
+						input.close();
+						throw new IOException("Download of " + _uri + " is too short");
+					}
+					count = 1;
+				}
+				skipped += count;
+			}
+			return input;
+		}
+		_caller.expectStatusCode(response, 206); // Partial Content
+		long[] range = HttpCaller.parseContentRange(response);
+		if (range[0] != start) {
+			HttpCaller.closeResponseEntityInputStream(response);
+			throw new RestBackupException("Received wrong range", response);
+		}
+		return response.getEntity().getContent();
+	}
+
+	private void closeInput() {
+		if (_input != null) {
+			try {
+				_input.close();
+			} catch (IOException e) {
+			}
+			_input = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		_closed = true;
+		if (_input != null) {
+			InputStream input = _input;
+			_input = null;
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts files as independently sealed AES-GCM segments, so
+ * segments can be processed in parallel and any segment can be decrypted on
+ * its own.
+ * <p>
+ * An encrypted file starts with a header holding a magic number, the segment
+ * size and a random salt. The salt and the master key derive a key used only
+ * for this file. Each plaintext segment, except the last, holds exactly the
+ * segment size; the last may be shorter or empty. Each ciphertext segment is
+ * the plaintext followed by a 16 byte tag. The nonce of a segment holds its
+ * index and a flag marking the last segment, so segments cannot be
+ * reordered, and truncating the file fails authentication. The header is
+ * authenticated as associated data of every segment.
+ * <p>
+ * To decrypt one segment of a stored file:
+ * 
+ * <pre>
+ * byte[] header = EntityUtils.toByteArray(backup_api.getRange(uri, 0, SegmentCipher.HEADER_LENGTH));
+ * SegmentCipher cipher = SegmentCipher.open(key, header);
+ * long segmentCount = cipher.getSegmentCount(fileSize);
+ * byte[] segment = EntityUtils.toByteArray(backup_api.getRange(uri,
+ * 		cipher.getCiphertextOffset(i), cipher.getSegmentSize() + SegmentCipher.TAG_LENGTH));
+ * byte[] plaintext = cipher.decrypt(segment, i, i == segmentCount - 1);
+ * </pre>
+ * 
+ * @see EncryptingEntity
+ * @see DecryptingEntity
+ */
+public class SegmentCipher {
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public static final int HEADER_LENGTH = 24;
+	public static final int TAG_LENGTH = 16;
+	/** open() refuses headers that claim larger segments */
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final byte[] MAGIC = { 'R', 'B', 'E', '1' };
+	private static final int SALT_LENGTH = 16;
+	private static final int NONCE_LENGTH = 12;
+	private static final SecureRandom _random = new SecureRandom();
+
+	private final byte[] _header;
+	private final int _segmentSize;
+	private final SecretKeySpec _fileKey;
+
+	private SegmentCipher(SecretKey masterKey, byte[] header) throws GeneralSecurityException {
+		_header = header;
+		_segmentSize = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+		byte[] masterBytes = masterKey.getEncoded();
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(masterBytes, "HmacSHA256"));
+		mac.update(header, MAGIC.length + 4, SALT_LENGTH);
+		byte[] derived = mac.doFinal("restbackup segment key".getBytes(HttpCaller.UTF8_CHARSET));
+		_fileKey = new SecretKeySpec(Arrays.copyOf(derived, masterBytes.length), "AES");
+	}
+
+	/**
+	 * Makes a cipher for a new file with a random salt
+	 * 
+	 * @param masterKey
+	 *            an AES key of 128, 192 or 256 bits
+	 * @param segmentSize
+	 *            the number of plaintext bytes in each segment, 1 to
+	 *            MAX_SEGMENT_SIZE
+	 * @throws GeneralSecurityException
+	 *             if the key is not usable
+	 */
+	public static SegmentCipher create(SecretKey masterKey, int segmentSize)
+			throws GeneralSecurityException {
+		if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be 1 to " + MAX_SEGMENT_SIZE);
+		}
+		byte[] salt = new byte[SALT_LENGTH];
+		_random.nextBytes(salt);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC).putInt(segmentSize).put(salt);
+		return new SegmentCipher(masterKey, header.array());
+	}
+
+	/**
+	 * Makes a cipher for an existing file
+	 * 
+	 * @param masterKey
+	 *            the key the file was encrypted with
+	 * @param header
+	 *            the first HEADER_LENGTH bytes of the file
+	 * @throws IOException
+	 *             if the header is malformed, claims segments larger than
+	 *             MAX_SEGMENT_SIZE, or the key is not usable
+	 */
+	public static SegmentCipher open(SecretKey masterKey, byte[] header) throws IOException {
+		if (!hasMagic(header)) {
+			throw new IOException("Not an encrypted file");
+		}
+		if (!isHeader(header)) { // not authenticated yet, so check before allocating
+			throw new IOException("Encrypted file header claims a segment size of "
+					+ ByteBuffer.wrap(header, MAGIC.length, 4).getInt());
+		}
+		try {
+			return new SegmentCipher(masterKey, Arrays.copyOf(header, HEADER_LENGTH));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to use key", e);
+		}
+	}
+
+	/**
+	 * @return true if the bytes start with an encrypted file header whose
+	 *         segment size is 1 to MAX_SEGMENT_SIZE
+	 */
+	public static boolean isHeader(byte[] header) {
+		if (!hasMagic(header)) {
+			return false;
+		}
+		int segmentSize = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+		return segmentSize > 0 && segmentSize <= MAX_SEGMENT_SIZE;
+	}
+
+	private static boolean hasMagic(byte[] header) {
+		return header.length >= HEADER_LENGTH
+				&& Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC);
+	}
+
+	/**
+	 * @return the header that starts the encrypted file
+	 */
+	public byte[] getHeader() {
+		return _header.clone();
+	}
+
+	/**
+	 * @return the number of plaintext bytes in each segment except the last
+	 */
+	public int getSegmentSize() {
+		return _segmentSize;
+	}
+
+	/**
+	 * @return the offset in the encrypted file of the segment
+	 */
+	public long getCiphertextOffset(long index) {
+		return HEADER_LENGTH + index * (_segmentSize + (long) TAG_LENGTH);
+	}
+
+	/**
+	 * @return the number of segments in an encrypted file of this size
+	 */
+	public long getSegmentCount(long ciphertextSize) {
+		long segmentsLength = ciphertextSize - HEADER_LENGTH;
+		long segmentLength = _segmentSize + (long) TAG_LENGTH;
+		return (segmentsLength + segmentLength - 1) / segmentLength;
+	}
+
+	/**
+	 * @return the size of the encrypted file for a plaintext of this size
+	 */
+	public static long getCiphertextSize(long plaintextSize, int segmentSize) {
+		long segments = Math.max(1, (plaintextSize + segmentSize - 1) / segmentSize);
+		return HEADER_LENGTH + plaintextSize + segments * TAG_LENGTH;
+	}
+
+	/**
+	 * @return the size of the plaintext of an encrypted file of this size
+	 */
+	public long getPlaintextSize(long ciphertextSize) {
+		return ciphertextSize - HEADER_LENGTH - getSegmentCount(ciphertextSize) * TAG_LENGTH;
+	}
+
+	/**
+	 * Seals one segment. Safe to call from several threads at once.
+	 * 
+	 * @param plaintext
+	 *            the segment data, at most getSegmentSize() bytes
+	 * @param index
+	 *            the position of the segment in the file, starting at 0
+	 * @param last
+	 *            true for the final segment of the file
+	 */
+	public byte[] encrypt(byte[] plaintext, long index, boolean last) throws IOException {
+		if (plaintext.length > _segmentSize) {
+			throw new IllegalArgumentException("Segment is too large");
+		}
+		try {
+			return newCipher(Cipher.ENCRYPT_MODE, index, last).doFinal(plaintext);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to encrypt segment", e);
+		}
+	}
+
+	/**
+	 * Opens one segment. Safe to call from several threads at once.
+	 * 
+	 * @param ciphertext
+	 *            the segment data including its tag
+	 * @param index
+	 *            the position of the segment in the file, starting at 0
+	 * @param last
+	 *            true for the final segment of the file
+	 * @throws IOException
+	 *             if the segment was modified, moved or truncated
+	 */
+	public byte[] decrypt(byte[] ciphertext, long index, boolean last) throws IOException {
+		if (ciphertext.length < TAG_LENGTH || ciphertext.length > _segmentSize + TAG_LENGTH) {
+			throw new IOException("Encrypted segment has wrong size");
+		}
+		try {
+			return newCipher(Cipher.DECRYPT_MODE, index, last).doFinal(ciphertext);
+		} catch (AEADBadTagException e) {
+			throw new IOException("Encrypted segment " + index + " failed authentication", e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to decrypt segment", e);
+		}
+	}
+
+	private Cipher newCipher(int mode, long index, boolean last) throws GeneralSecurityException {
+		ByteBuffer nonce = ByteBuffer.allocate(NONCE_LENGTH);
+		nonce.putLong(index).put((byte) (last ? 1 : 0));
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(mode, _fileKey, new GCMParameterSpec(8 * TAG_LENGTH, nonce.array()));
+		cipher.updateAAD(_header);
+		return cipher;
+	}
+}
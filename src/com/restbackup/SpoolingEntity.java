@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Makes a non-repeatable entity repeatable. Copies the data into a local spool
+ * as it is read from the wrapped entity. The first bytes are kept in memory and
+ * the rest is written to a memory-mapped temporary file. Each call to
+ * getContent() or writeTo() replays the spooled data and then continues
+ * reading the wrapped entity where the previous attempt stopped, so a retried
+ * request resends the whole body without needing the source again.
+ * 
+ * Call close() to delete the temporary file.
+ * 
+ * @see HttpCaller#executeRequestWithRetries(org.apache.http.client.methods.HttpUriRequest)
+ */
+public class SpoolingEntity extends HttpEntityWrapper {
+	public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int _memoryLimit;
+	private final int _windowSize;
+	private byte[] _memory = null;
+	private InputStream _source = null;
+	private boolean _sourceExhausted = false;
+	private long _spooled = 0;
+	private Path _spillPath = null;
+	private FileChannel _spillChannel = null;
+	private MappedByteBuffer _writeWindow = null;
+
+	/**
+	 * @param wrapped
+	 *            the non-repeatable entity to spool
+	 */
+	public SpoolingEntity(HttpEntity wrapped) {
+		this(wrapped, DEFAULT_MEMORY_LIMIT, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param wrapped
+	 *            the non-repeatable entity to spool
+	 * @param memoryLimit
+	 *            the number of bytes to keep in memory
+	 * @param windowSize
+	 *            the number of bytes of the temporary file to map at once
+	 */
+	public SpoolingEntity(HttpEntity wrapped, int memoryLimit, int windowSize) {
+		super(wrapped);
+		if (memoryLimit < 0 || windowSize < 1) {
+			throw new IllegalArgumentException("memoryLimit must be >= 0 and windowSize > 0");
+		}
+		_memoryLimit = memoryLimit;
+		_windowSize = windowSize;
+	}
+
+	/**
+	 * @return the number of bytes copied into the spool so far
+	 */
+	public long getSpooledLength() {
+		return _spooled;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !_sourceExhausted;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new ReplayInputStream();
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream input = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				outstream.write(buffer, 0, bytesRead);
+			}
+			outstream.flush();
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Closes the wrapped entity's stream and deletes the temporary file
+	 */
+	public void close() throws IOException {
+		_writeWindow = null;
+		try {
+			if (_source != null) {
+				_source.close();
+			}
+		} finally {
+			if (_spillChannel != null) {
+				_spillChannel.close();
+				_spillChannel = null;
+				Files.deleteIfExists(_spillPath);
+			}
+		}
+	}
+
+	/**
+	 * Reads more data from the wrapped entity and appends it to the spool
+	 * 
+	 * @return the number of bytes read, or -1 at the end of the wrapped entity
+	 */
+	private int fill(byte[] b, int off, int len) throws IOException {
+		if (_sourceExhausted) {
+			return -1;
+		}
+		if (_source == null) {
+			_source = wrappedEntity.getContent();
+		}
+		int bytesRead = _source.read(b, off, len);
+		if (bytesRead == -1) {
+			_sourceExhausted = true;
+			_source.close();
+			return -1;
+		}
+		int inMemory = 0;
+		if (_spooled < _memoryLimit) {
+			inMemory = (int) Math.min(bytesRead, _memoryLimit - _spooled);
+			ensureMemoryCapacity((int) _spooled + inMemory);
+			System.arraycopy(b, off, _memory, (int) _spooled, inMemory);
+			_spooled += inMemory;
+		}
+		if (inMemory < bytesRead) {
+			spill(b, off + inMemory, bytesRead - inMemory);
+		}
+		return bytesRead;
+	}
+
+	/**
+	 * Grows the memory buffer, doubling its size up to the memory limit
+	 */
+	private void ensureMemoryCapacity(int capacity) {
+		if (_memory == null) {
+			long length = wrappedEntity.getContentLength();
+			int initial = length < 0 ? BUFFER_SIZE : (int) Math.min(_memoryLimit, length);
+			_memory = new byte[Math.max(capacity, initial)];
+		} else if (_memory.length < capacity) {
+			int newLength = (int) Math.min(_memoryLimit, Math.max(capacity,
+					2L * _memory.length));
+			_memory = Arrays.copyOf(_memory, newLength);
+		}
+	}
+
+	/**
+	 * Appends data to the temporary file, mapping a new window when the
+	 * current one is full
+	 */
+	private void spill(byte[] b, int off, int len) throws IOException {
+		if (_spillChannel == null) {
+			_spillPath = Files.createTempFile("restbackup-spool", ".tmp");
+			_spillChannel = FileChannel.open(_spillPath, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}
+		while (len > 0) {
+			if (_writeWindow == null || !_writeWindow.hasRemaining()) {
+				long windowStart = _spooled - _memoryLimit;
+				_writeWindow = _spillChannel.map(MapMode.READ_WRITE, windowStart, _windowSize);
+			}
+			int count = Math.min(len, _writeWindow.remaining());
+			_writeWindow.put(b, off, count);
+			_spooled += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Replays the spool and then continues reading the wrapped entity
+	 */
+	private class ReplayInputStream extends InputStream {
+		private long _position = 0;
+		private MappedByteBuffer _readWindow = null;
+		private long _readWindowStart = -1;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (_position >= _spooled) {
+				int bytesRead = fill(b, off, len);
+				if (bytesRead != -1) {
+					_position += bytesRead;
+				}
+				return bytesRead;
+			}
+			int count;
+			if (_position < _memoryLimit) {
+				count = (int) Math.min(len, Math.min(_memoryLimit, _spooled) - _position);
+				System.arraycopy(_memory, (int) _position, b, off, count);
+			} else {
+				long spillPosition = _position - _memoryLimit;
+				long windowStart = spillPosition - spillPosition % _windowSize;
+				if (windowStart != _readWindowStart) {
+					_readWindow = _spillChannel.map(MapMode.READ_ONLY, windowStart, _windowSize);
+					_readWindowStart = windowStart;
+				}
+				_readWindow.position((int) (spillPosition - windowStart));
+				count = (int) Math.min(len, Math.min(_readWindow.remaining(), _spooled
+						- _position));
+				_readWindow.get(b, off, count);
+			}
+			_position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			_readWindow = null;
+		}
+	}
+}
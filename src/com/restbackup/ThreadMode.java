@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Selects the kind of threads that bulk operations such as backupTree(),
+ * restoreAll(), putLarge() and getToPath() run their requests on.
+ * 
+ * @see BackupApiCaller#setThreadMode(ThreadMode)
+ */
+public enum ThreadMode {
+	/**
+	 * A new pool with one platform thread per unit of parallelism
+	 */
+	PLATFORM,
+	/**
+	 * Virtual threads, with at most parallelism tasks running at once.
+	 * Blocked requests do not hold platform threads. Needs a JDK with virtual
+	 * threads (21 or later); on older JDKs this is the same as PLATFORM.
+	 * 
+	 * Use JDK 24 or later (JEP 491). HttpClient returns connections to its
+	 * pool inside synchronized blocks, and on JDK 21 to 23 a virtual thread
+	 * in a synchronized block pins its carrier thread, including while it
+	 * closes the connection. With many requests at once the carriers can all
+	 * be pinned, and the other virtual threads wait for them.
+	 */
+	VIRTUAL;
+
+	private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+
+	private static Method findVirtualExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the JDK has virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return NEW_VIRTUAL_EXECUTOR != null;
+	}
+
+	/**
+	 * Makes an executor that runs at most parallelism tasks at once. Shut it
+	 * down when done.
+	 * 
+	 * @param parallelism
+	 *            the maximum number of tasks running at once, must be > 0
+	 */
+	public ExecutorService newExecutor(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be > 0");
+		}
+		if (this == PLATFORM || NEW_VIRTUAL_EXECUTOR == null) {
+			return Executors.newFixedThreadPool(parallelism);
+		}
+		ExecutorService perTask;
+		try {
+			perTask = (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot make virtual thread executor", e);
+		}
+		return new BoundedExecutor(perTask, parallelism);
+	}
+
+	/**
+	 * Queues tasks and runs them in the order they were submitted on at most
+	 * bound threads of another executor. Each thread takes tasks from the
+	 * queue until it is empty.
+	 */
+	static class BoundedExecutor extends AbstractExecutorService {
+		private final ExecutorService _threads;
+		private final int _bound;
+		private final ReentrantLock _lock = new ReentrantLock();
+		private final ArrayDeque<Runnable> _queue = new ArrayDeque<Runnable>();
+		private int _running = 0;
+		private boolean _shutdown = false;
+
+		BoundedExecutor(ExecutorService threads, int bound) {
+			_threads = threads;
+			_bound = bound;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			if (command == null) {
+				throw new NullPointerException();
+			}
+			_lock.lock();
+			try {
+				if (_shutdown) {
+					throw new RejectedExecutionException("Executor is shut down");
+				}
+				_queue.addLast(command);
+				if (_running >= _bound) {
+					return; // a running thread will take it
+				}
+				_running++;
+			} finally {
+				_lock.unlock();
+			}
+			try {
+				_threads.execute(new Runnable() {
+					@Override
+					public void run() {
+						runQueued();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				_lock.lock();
+				try {
+					_running--;
+					_queue.remove(command);
+				} finally {
+					_lock.unlock();
+				}
+				throw e;
+			}
+		}
+
+		private void runQueued() {
+			while (true) {
+				Runnable task;
+				_lock.lock();
+				try {
+					task = _queue.pollFirst();
+					if (task == null) {
+						_running--;
+						return;
+					}
+				} finally {
+					_lock.unlock();
+				}
+				try {
+					task.run();
+				} catch (Throwable t) { // report it as a pool thread would, and go on
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+				}
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			_lock.lock();
+			try {
+				_shutdown = true;
+			} finally {
+				_lock.unlock();
+			}
+			_threads.shutdown(); // running threads still drain the queue
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			List<Runnable> notRun;
+			_lock.lock();
+			try {
+				_shutdown = true;
+				notRun = new ArrayList<Runnable>(_queue);
+				_queue.clear();
+			} finally {
+				_lock.unlock();
+			}
+			_threads.shutdownNow();
+			return notRun;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return _threads.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return _threads.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return _threads.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Passes the data of an entity through a BandwidthLimiter. HttpCaller wraps
+ * every request and response entity with the shared limiters.
+ * 
+ * @see BandwidthLimiter
+ */
+public class ThrottledEntity extends HttpEntityWrapper {
+	private final BandwidthLimiter _limiter;
+
+	public ThrottledEntity(HttpEntity wrapped, BandwidthLimiter limiter) {
+		super(wrapped);
+		_limiter = limiter;
+	}
+
+	/**
+	 * @return the entity without throttling
+	 */
+	public HttpEntity getWrappedEntity() {
+		return wrappedEntity;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new FilterInputStream(wrappedEntity.getContent()) {
+			@Override
+			public int read() throws IOException {
+				int b = in.read();
+				if (b != -1) {
+					_limiter.acquire(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (!_limiter.isUnlimited()) {
+					len = Math.min(len, BandwidthLimiter.MAX_CHUNK);
+				}
+				int bytesRead = in.read(b, off, len);
+				_limiter.acquire(bytesRead);
+				return bytesRead;
+			}
+		};
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		wrappedEntity.writeTo(new FilterOutputStream(outstream) {
+			@Override
+			public void write(int b) throws IOException {
+				_limiter.acquire(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int count = _limiter.isUnlimited() ? len : Math.min(len,
+							BandwidthLimiter.MAX_CHUNK);
+					_limiter.acquire(count);
+					out.write(b, off, count);
+					off += count;
+					len -= count;
+				}
+			}
+		});
+	}
+}
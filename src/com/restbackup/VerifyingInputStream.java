@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checks data against its expected digest as it is read. Throws
+ * DigestMismatchException as soon as the stream holds more data than
+ * expected, and at the end of the stream if the size or digests differ. The
+ * end of the stream is returned only after the data is verified.
+ * 
+ * @see BackupApiCaller#getVerified(String)
+ */
+public class VerifyingInputStream extends FilterInputStream {
+	private final ContentDigest _expected;
+	private final ContentDigest.Builder _builder = new ContentDigest.Builder();
+	private boolean _verified = false;
+
+	/**
+	 * @param input
+	 *            the data to verify
+	 * @param expected
+	 *            the digest recorded when the data was uploaded
+	 */
+	public VerifyingInputStream(InputStream input, ContentDigest expected) {
+		super(input);
+		_expected = expected;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int bytesRead = in.read(b, off, len);
+		if (bytesRead == -1) {
+			verify();
+			return -1;
+		}
+		_builder.update(b, off, bytesRead);
+		if (_builder.getSize() > _expected.getSize()) {
+			throw new DigestMismatchException("Received more than the expected "
+					+ _expected.getSize() + " bytes");
+		}
+		return bytesRead;
+	}
+
+	private void verify() throws DigestMismatchException {
+		if (_verified) {
+			return;
+		}
+		ContentDigest actual = _builder.build();
+		if (!actual.equals(_expected)) {
+			throw new DigestMismatchException("Expected " + _expected + " but received "
+					+ actual);
+		}
+		_verified = true;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		throw new IOException("Skipping would leave data unverified");
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures lookups in a FileCatalog of many entries spread over many
+ * accounts, and the heap it uses. Run with an optional number of entries in
+ * millions:
+ * 
+ * <pre>
+ * java com.restbackup.BenchmarkFileCatalog 10
+ * </pre>
+ */
+public class BenchmarkFileCatalog {
+	private static final int ACCOUNTS = 10000;
+	private static final int LOOKUPS = 100000;
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0 ? Integer.parseInt(args[0]) : 2) * 1000000;
+		Path dir = Files.createTempDirectory("catalog-benchmark");
+		try {
+			FileCatalog catalog = FileCatalog.open(dir);
+			catalog.setMergeThreshold(entries / 4 + 1);
+			long start = System.nanoTime();
+			for (int n = 0; n < entries; n++) {
+				catalog.record("/account-" + (n % ACCOUNTS), new FileDetails("/backup/file-" + n,
+						n, 1300000000L + n, 1400000000L + n));
+			}
+			catalog.close();
+			System.out.printf("recorded %d entries in %.1f s%n", entries,
+					(System.nanoTime() - start) / 1e9);
+
+			catalog = FileCatalog.open(dir);
+			System.out.printf("opened, %d KB of heap in use%n", usedHeap() / 1024);
+			Random random = new Random(1);
+			for (int round = 0; round < 3; round++) {
+				start = System.nanoTime();
+				int found = 0;
+				for (int i = 0; i < LOOKUPS; i++) {
+					int n = random.nextInt(entries);
+					found += catalog.get("/account-" + (n % ACCOUNTS), "/backup/file-" + n).size();
+				}
+				long getNanos = (System.nanoTime() - start) / LOOKUPS;
+				start = System.nanoTime();
+				for (int i = 0; i < LOOKUPS; i++) {
+					long from = 1300000000L + random.nextInt(entries);
+					found += catalog.findCreatedBetween(from, from + 10).size();
+				}
+				long rangeNanos = (System.nanoTime() - start) / LOOKUPS;
+				System.out.printf("get: %d ns, findCreatedBetween: %d ns (%d found)%n", getNanos,
+						rangeNanos, found);
+			}
+			catalog.close();
+		} finally {
+			for (Path file : Files.newDirectoryStream(dir)) {
+				Files.delete(file);
+			}
+			Files.delete(dir);
+		}
+	}
+}
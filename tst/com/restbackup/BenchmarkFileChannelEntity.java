@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.Handler;
+
+/**
+ * Compares upload throughput and client CPU time of FileEntity and
+ * FileChannelEntity. Uploads go through BackupApiCaller.put() to a local
+ * server that discards the data. Run with an optional file size in megabytes:
+ * 
+ * <pre>
+ * java com.restbackup.BenchmarkFileChannelEntity 1024
+ * </pre>
+ */
+public class BenchmarkFileChannelEntity {
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Reads and discards request bodies, answering 201 Created
+	 */
+	static class DiscardHttp11 extends Handler {
+		public void handle(Socket socket) throws Exception {
+			HttpServerConnection conn = bind(socket);
+			while (conn.isOpen()) {
+				HttpRequest request = conn.receiveRequestHeader();
+				if (request instanceof HttpEntityEnclosingRequest) {
+					if (request.containsHeader("Expect")) {
+						conn.sendResponseHeader(new BasicHttpResponse(HttpVersion.HTTP_1_1, 100,
+								"Continue"));
+						conn.flush();
+					}
+					conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
+					InputStream input = ((HttpEntityEnclosingRequest) request).getEntity()
+							.getContent();
+					byte[] buffer = new byte[256 * 1024];
+					while (input.read(buffer) != -1) {
+					}
+				}
+				HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 201,
+						"Created");
+				response.setEntity(new StringEntity("created"));
+				response.setHeader("Content-Length", "7");
+				conn.sendResponseHeader(response);
+				conn.sendResponseEntity(response);
+				conn.flush();
+			}
+		}
+	}
+
+	interface EntityFactory {
+		HttpEntity make(Path path) throws Exception;
+	}
+
+	private static void run(String name, BackupApiCaller caller, Path path, EntityFactory factory)
+			throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		double bestMBps = 0;
+		double bestCpuSeconds = Double.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long startNanos = System.nanoTime();
+			long startCpu = threads.getCurrentThreadCpuTime();
+			caller.put("/" + UUID.randomUUID(), factory.make(path));
+			double seconds = (System.nanoTime() - startNanos) / 1e9;
+			double cpuSeconds = (threads.getCurrentThreadCpuTime() - startCpu) / 1e9;
+			bestMBps = Math.max(bestMBps, Files.size(path) / seconds / 1e6);
+			bestCpuSeconds = Math.min(bestCpuSeconds, cpuSeconds);
+		}
+		System.out.println(String.format("%-20s %8.1f MB/s %8.3f s client cpu", name, bestMBps,
+				bestCpuSeconds));
+	}
+
+	public static void main(String[] args) throws Exception {
+		long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 256;
+		Path path = Files.createTempFile("restbackup-benchmark", ".bin");
+		path.toFile().deleteOnExit();
+		byte[] block = new byte[1024 * 1024];
+		for (long n = 0; n < megabytes; n++) {
+			Files.write(path, block, java.nio.file.StandardOpenOption.APPEND);
+		}
+		TestingTcpServer server = new TestingTcpServer();
+		server.setDefaultHandler(new DiscardHttp11());
+		BackupApiCaller caller = new BackupApiCaller(server.getUrl());
+		System.out.println("Uploading " + megabytes + " MB, best of " + ROUNDS + " rounds");
+		run("FileEntity", caller, path, new EntityFactory() {
+			public HttpEntity make(Path path) {
+				return new FileEntity(path.toFile(), "application/octet-stream");
+			}
+		});
+		run("FileChannelEntity", caller, path, new EntityFactory() {
+			public HttpEntity make(Path path) throws Exception {
+				return new FileChannelEntity(path);
+			}
+		});
+		server.shutdown();
+		System.exit(0);
+	}
+}
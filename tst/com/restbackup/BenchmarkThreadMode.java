@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.Handler;
+
+/**
+ * Compares backupTree() in the PLATFORM and VIRTUAL thread modes. Uploads a
+ * tree of small files to a local server that answers each request after a
+ * fixed delay, like a distant server would, and reports files per second and
+ * the peak number of platform threads in the process (including the server's
+ * thread per connection). Run with optional file count and delay:
+ * 
+ * <pre>
+ * java com.restbackup.BenchmarkThreadMode 2000 20
+ * </pre>
+ */
+public class BenchmarkThreadMode {
+	/**
+	 * Reads and discards request bodies, answering 201 Created after a delay
+	 */
+	static class SlowCreatedHttp11 extends Handler {
+		private final long _delayMillis;
+
+		SlowCreatedHttp11(long delayMillis) {
+			_delayMillis = delayMillis;
+		}
+
+		public void handle(Socket socket) throws Exception {
+			HttpServerConnection conn = bind(socket);
+			while (conn.isOpen()) {
+				HttpRequest request = conn.receiveRequestHeader();
+				if (request instanceof HttpEntityEnclosingRequest) {
+					if (request.containsHeader("Expect")) {
+						conn.sendResponseHeader(new BasicHttpResponse(HttpVersion.HTTP_1_1, 100,
+								"Continue"));
+						conn.flush();
+					}
+					conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
+					EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+				}
+				Thread.sleep(_delayMillis);
+				HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 201,
+						"Created");
+				response.setEntity(new StringEntity("created"));
+				response.setHeader("Content-Length", "7");
+				conn.sendResponseHeader(response);
+				conn.sendResponseEntity(response);
+				conn.flush();
+			}
+		}
+	}
+
+	private static void run(BackupApiCaller caller, Path root, ThreadMode mode, int parallelism)
+			throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		caller.setThreadMode(mode);
+		threads.resetPeakThreadCount();
+		long startNanos = System.nanoTime();
+		BulkResult result = caller.backupTree(root, "/" + UUID.randomUUID(), parallelism);
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		if (!result.isSuccess()) {
+			throw new IllegalStateException(result.getFailures().toString());
+		}
+		System.out.println(String.format("%-8s %4d %8.0f files/s %6d peak threads", mode,
+				parallelism, result.getSucceeded().size() / seconds, threads.getPeakThreadCount()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long delayMillis = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		Path root = Files.createTempDirectory("restbackup-benchmark");
+		for (int i = 0; i < files; i++) {
+			Files.write(root.resolve("file" + i), new byte[1024]);
+		}
+		TestingTcpServer server = new TestingTcpServer();
+		server.setDefaultHandler(new SlowCreatedHttp11(delayMillis));
+		BackupApiCaller caller = new BackupApiCaller(server.getUrl());
+		System.out.println("Uploading " + files + " files, " + delayMillis + " ms per request, "
+				+ (ThreadMode.isVirtualThreadsAvailable() ? "with" : "without")
+				+ " virtual threads");
+		run(caller, root, ThreadMode.PLATFORM, 8); // warm up
+		for (int parallelism : new int[] { 8, 64, 200 }) {
+			run(caller, root, ThreadMode.PLATFORM, parallelism);
+			run(caller, root, ThreadMode.VIRTUAL, parallelism);
+		}
+		server.shutdown();
+		System.exit(0);
+	}
+}
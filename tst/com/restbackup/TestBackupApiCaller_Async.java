@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_Async {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private ExecutorService _executor;
+	private BackupApiCaller _caller;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_executor = Executors.newSingleThreadExecutor();
+		_caller = new BackupApiCaller(_server.getUrl());
+		_caller.setAsyncExecutor(_executor);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_executor.shutdownNow();
+	}
+
+	@Test
+	public void testPutAndGetAsync() throws Exception {
+		CompletableFuture<String> put = _caller.putAsync("/file1", new StringEntity("data1"));
+		assertEquals("created", put.get(10, TimeUnit.SECONDS));
+		HttpEntity entity = _caller.getAsync("/file1").get(10, TimeUnit.SECONDS);
+		assertEquals("data1", EntityUtils.toString(entity));
+	}
+
+	@Test
+	public void testListAsync() throws Exception {
+		String json = "[{\"name\":\"/file1\",\"size\":5,\"createtime\":1,\"deletetime\":2}]";
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+		Collection<FileDetails> files = _caller.listAsync().get(10, TimeUnit.SECONDS);
+		assertEquals(1, files.size());
+		assertEquals("/file1", files.iterator().next().getUri());
+	}
+
+	@Test
+	public void testErrorCompletesExceptionally() throws Exception {
+		try {
+			_caller.getAsync("/missing").get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RestBackupException);
+		}
+	}
+
+	@Test
+	public void testMalformedUriCompletesExceptionally() throws Exception {
+		assertTrue(_caller.getAsync("no-slash").isCompletedExceptionally());
+	}
+
+	@Test
+	public void testRetryDelayDoesNotHoldThread() throws Exception {
+		_store.failNext("/slow", 2); // retried after 100 ms and 1000 ms
+		CompletableFuture<String> slow = _caller.putAsync("/slow", new StringEntity("slow"));
+		Thread.sleep(50);
+		long start = System.nanoTime();
+		CompletableFuture<String> fast = _caller.putAsync("/fast", new StringEntity("fast"));
+		assertEquals("created", fast.get(10, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+		assertFalse(slow.isDone());
+		assertEquals("created", slow.get(10, TimeUnit.SECONDS));
+		assertEquals(4, _store.getPutCount());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() throws Exception {
+		_caller.setMaxRequestAttempts(2);
+		_store.failNext("/file1", 5);
+		try {
+			_caller.putAsync("/file1", new StringEntity("data1")).get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RestBackupException);
+		}
+		assertEquals(2, _store.getPutCount());
+	}
+
+	@Test
+	public void testCancelStopsRetries() throws Exception {
+		_store.failNext("/file1", 5);
+		CompletableFuture<String> put = _caller.putAsync("/file1", new StringEntity("data1"));
+		Thread.sleep(50);
+		put.cancel(false);
+		Thread.sleep(1500);
+		assertEquals(1, _store.getPutCount());
+	}
+
+	@Test
+	public void testCancelLetsAttemptFinishWithSpool() throws Exception {
+		final AtomicBoolean closed = new AtomicBoolean(false);
+		final AtomicBoolean readAfterClose = new AtomicBoolean(false);
+		InputStream slow = new InputStream() {
+			private int _remaining = 2000;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (closed.get()) {
+					readAfterClose.set(true);
+					throw new IOException("closed");
+				}
+				if (_remaining == 0) {
+					return -1;
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				int count = Math.min(Math.min(len, 100), _remaining);
+				_remaining -= count;
+				return count;
+			}
+
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		};
+		_caller.setMaxRequestAttempts(2); // spools the body
+		CompletableFuture<String> put = _caller.putAsync("/file1", new InputStreamEntity(slow,
+				2000));
+		Thread.sleep(200);
+		put.cancel(true);
+		_executor.submit(new Runnable() { // runs when the attempt has finished
+			@Override
+			public void run() {
+			}
+		}).get(10, TimeUnit.SECONDS);
+		assertFalse(readAfterClose.get());
+		assertTrue(closed.get());
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_BackupTree {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _root;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_root = Files.createTempDirectory("tree");
+		for (int dir = 0; dir < 5; dir++) {
+			Path directory = Files.createDirectories(_root.resolve("dir " + dir + "/sub"));
+			for (int file = 0; file < 4; file++) {
+				byte[] data = new byte[1000 * (dir + 1) * (file + 1)];
+				Arrays.fill(data, (byte) file);
+				Files.write(directory.resolve("file" + file), data);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testBackupTree() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		BulkResult result = caller.backupTree(_root, "/tree", 4);
+		assertTrue(result.isSuccess());
+		assertEquals(20, result.getSucceeded().size());
+		assertEquals(20, _store.getFiles().size());
+		assertEquals(1000 * 15 * 10, result.getBytes());
+		assertArrayEquals(Files.readAllBytes(_root.resolve("dir 3/sub/file2")), _store
+				.getFiles().get("/tree/dir%203/sub/file2"));
+	}
+
+	@Test
+	public void testBackupTreeVirtualThreads() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setThreadMode(ThreadMode.VIRTUAL);
+		BulkResult result = caller.backupTree(_root, "/tree", 4);
+		assertTrue(result.isSuccess());
+		assertEquals(20, _store.getFiles().size());
+	}
+
+	@Test
+	public void testFailedFileDoesNotStopOthers() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setMaxRequestAttempts(1);
+		_store.failNext("/tree/dir%201/sub/file1", 1);
+		BulkResult result = caller.backupTree(_root, "/tree", 3);
+		assertFalse(result.isSuccess());
+		assertEquals(19, result.getSucceeded().size());
+		assertEquals(1, result.getFailures().size());
+		assertTrue(result.getFailures().containsKey("dir 1/sub/file1"));
+	}
+}
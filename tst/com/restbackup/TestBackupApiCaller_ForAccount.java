@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_ForAccount {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	/** The Authorization and Host headers of the last request for each uri */
+	private static final Map<String, String> _authorizations =
+			new ConcurrentHashMap<String, String>();
+	private static final Map<String, String> _hosts = new ConcurrentHashMap<String, String>();
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11() {
+			@Override
+			public HttpResponse handle(HttpRequest request) {
+				String uri = request.getRequestLine().getUri();
+				_authorizations.put(uri, request.getFirstHeader("Authorization").getValue());
+				_hosts.put(uri, request.getFirstHeader("Host").getValue());
+				return super.handle(request);
+			}
+		};
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_authorizations.clear();
+		_hosts.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	private String makeUrl(String user, String host) {
+		return _server.getUrl().replace("USER", user).replace("localhost", host);
+	}
+
+	@Test
+	public void testSharesClient() throws Exception {
+		BackupApiCaller base = new BackupApiCaller(_server.getUrl());
+		base.setMaxRequestAttempts(2);
+		base.setRangeSize(1024);
+		BackupApiCaller view = base.forAccount(makeUrl("OTHER", "localhost"));
+		assertSame(base.getHttpClient(), view.getHttpClient());
+		assertEquals("OTHER", view.getUsername());
+		assertEquals(2, view.getMaxRequestAttempts());
+		assertEquals(1024, view.getRangeSize());
+		assertSame(base.getAsyncExecutor(), view.getAsyncExecutor());
+		assertNotSame(base.getListingCache(), view.getListingCache());
+		assertNull(view.getHttpClient().getParams().getParameter(ClientPNames.DEFAULT_HOST));
+		assertNull(view.getHttpClient().getParams().getParameter(ClientPNames.DEFAULT_HEADERS));
+	}
+
+	@Test
+	public void testEachViewSendsItsOwnCredentialsAndHost() throws Exception {
+		BackupApiCaller base = new BackupApiCaller(_server.getUrl());
+		BackupApiCaller a = base.forAccount(makeUrl("AAA", "localhost"));
+		BackupApiCaller b = base.forAccount(makeUrl("BBB", "127.0.0.1"));
+		a.put("/a", new StringEntity("data a"));
+		b.put("/b", new StringEntity("data b"));
+		base.put("/base", new StringEntity("data"));
+		assertEquals("Basic " + HttpCaller.encodeBase64("AAA:PASS"), _authorizations.get("/a"));
+		assertEquals("Basic " + HttpCaller.encodeBase64("BBB:PASS"), _authorizations.get("/b"));
+		assertEquals("Basic " + HttpCaller.encodeBase64("USER:PASS"), _authorizations.get("/base"));
+		assertTrue(_hosts.get("/a").startsWith("localhost:"));
+		assertTrue(_hosts.get("/b").startsWith("127.0.0.1:"));
+		assertEquals("data b", EntityUtils.toString(a.get("/b")));
+		assertEquals("Basic " + HttpCaller.encodeBase64("AAA:PASS"), _authorizations.get("/b"));
+	}
+
+	@Test
+	public void testManyViewsInParallel() throws Exception {
+		BackupApiCaller base = new BackupApiCaller(_server.getUrl());
+		List<CompletableFuture<String>> uploads = new ArrayList<CompletableFuture<String>>();
+		for (int n = 0; n < 200; n++) {
+			BackupApiCaller view = base.forAccount(makeUrl("user" + n, "localhost"));
+			uploads.add(view.putAsync("/file" + n, new StringEntity("data " + n)));
+		}
+		for (CompletableFuture<String> upload : uploads) {
+			upload.get();
+		}
+		for (int n = 0; n < 200; n++) {
+			assertEquals("Basic " + HttpCaller.encodeBase64("user" + n + ":PASS"), _authorizations
+					.get("/file" + n));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadAccessUrl() throws Exception {
+		new BackupApiCaller(_server.getUrl()).forAccount("https://USER@host/");
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_GetToPath {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	private static Path tempPath() throws Exception {
+		Path path = Files.createTempFile("restbackup-test", ".out");
+		path.toFile().deleteOnExit();
+		return path;
+	}
+
+	@Test
+	public void testGetToPath() throws Exception {
+		Path source = TestUtils.makeTempFile(100000);
+		_store.getFiles().put("/file", Files.readAllBytes(source));
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setRangeSize(7000);
+		Path target = tempPath();
+		assertEquals(100000, caller.getToPath("/file", target, 4));
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+		assertEquals(15, _store.getGetCount());
+	}
+
+	@Test
+	public void testGetToPathSmallFile() throws Exception {
+		_store.getFiles().put("/small", "abc".getBytes("UTF-8"));
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		Path target = tempPath();
+		assertEquals(3, caller.getToPath("/small", target, 4));
+		assertEquals("abc", new String(Files.readAllBytes(target), "UTF-8"));
+		assertEquals(1, _store.getGetCount());
+	}
+
+	@Test
+	public void testGetToPathMultipartFile() throws Exception {
+		Path source = TestUtils.makeTempFile(100000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/large", source, 30000, 2);
+		caller.setRangeSize(20000);
+		Path target = tempPath();
+		assertEquals(100000, caller.getToPath("/large", target, 3));
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void testFailedRangeIsRetriedAlone() throws Exception {
+		Path source = TestUtils.makeTempFile(30000);
+		_store.getFiles().put("/file", Files.readAllBytes(source));
+		_store.failNext("/file", 1);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setRangeSize(10000);
+		Path target = tempPath();
+		assertEquals(30000, caller.getToPath("/file", target, 2));
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+		assertEquals(4, _store.getGetCount()); // 3 ranges, 1 retried range
+	}
+
+	@Test
+	public void testGetToPathEmptyFile() throws Exception {
+		_store.getFiles().put("/empty", new byte[0]);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		Path target = tempPath();
+		Files.write(target, "old contents".getBytes("UTF-8"));
+		assertEquals(0, caller.getToPath("/empty", target, 2));
+		assertEquals(0, Files.size(target));
+	}
+
+	@Test(expected = ResourceNotFoundException.class)
+	public void testGetToPathMissingFile() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.getToPath("/missing", tempPath(), 2);
+	}
+}
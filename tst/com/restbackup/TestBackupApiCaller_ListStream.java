@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_ListStream {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private BackupApiCaller _caller;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_caller = new BackupApiCaller(_server.getUrl());
+	}
+
+	private void setListing(String json) throws Exception {
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+	}
+
+	private static String makeListing(int count) {
+		StringBuilder json = new StringBuilder("[");
+		for (int n = 0; n < count; n++) {
+			if (n > 0) {
+				json.append(",");
+			}
+			json.append("{\"name\":\"/file" + n + "\",\"size\":" + n
+					+ ",\"createtime\":1300000000,\"deletetime\":1400000000}");
+		}
+		return json.append("]").toString();
+	}
+
+	@Test
+	public void testListIterator() throws Exception {
+		setListing(makeListing(1000));
+		JsonArrayIterator<FileDetails> files = _caller.listIterator();
+		for (int n = 0; n < 1000; n++) {
+			assertTrue(files.hasNext());
+			FileDetails file = files.next();
+			assertEquals("/file" + n, file.getUri());
+			assertEquals(n, file.getSize());
+			assertEquals(1300000000000L, file.getCreateTime().getTime());
+			assertEquals(1400000000000L, file.getDeleteTime().getTime());
+		}
+		assertFalse(files.hasNext());
+		try {
+			files.next();
+			fail();
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	@Test
+	public void testNullsAndUnknownFields() throws Exception {
+		setListing("[{\"extra\":{\"a\":[1,2]},\"name\":\"/f\",\"size\":null,\"deletetime\":null}]");
+		Iterator<FileDetails> files = _caller.listIterator();
+		FileDetails file = files.next();
+		assertEquals("/f", file.getUri());
+		assertEquals(-1, file.getSize());
+		assertEquals(-1000, file.getCreateTime().getTime());
+		assertEquals(-1000, file.getDeleteTime().getTime());
+		assertFalse(files.hasNext());
+	}
+
+	@Test
+	public void testEmptyList() throws Exception {
+		setListing("[]");
+		assertFalse(_caller.listIterator().hasNext());
+		assertTrue(_caller.list().isEmpty());
+	}
+
+	@Test
+	public void testCloseEarlyReleasesConnection() throws Exception {
+		setListing(makeListing(100));
+		for (int n = 0; n < 5; n++) {
+			JsonArrayIterator<FileDetails> files = _caller.listIterator();
+			assertEquals("/file0", files.next().getUri());
+			files.close();
+			files.close();
+			assertFalse(files.hasNext());
+		}
+		assertEquals(100, _caller.list().size());
+	}
+
+	@Test
+	public void testListStream() throws Exception {
+		setListing(makeListing(50));
+		try (Stream<FileDetails> files = _caller.listStream()) {
+			assertEquals(50, files.count());
+		}
+		try (Stream<FileDetails> files = _caller.listStream()) {
+			Iterator<FileDetails> first = files.skip(1).limit(2).iterator();
+			assertEquals("/file1", first.next().getUri());
+			assertEquals("/file2", first.next().getUri());
+			assertFalse(first.hasNext());
+		}
+	}
+
+	@Test
+	public void testListUsesStreamingDecoder() throws Exception {
+		setListing(makeListing(3));
+		Collection<FileDetails> files = _caller.list();
+		assertEquals(3, files.size());
+		assertEquals(2, files.toArray(new FileDetails[0])[2].getSize());
+	}
+
+	@Test
+	public void testMalformedListing() throws Exception {
+		setListing("{\"name\":\"/f\"}");
+		try {
+			_caller.listIterator();
+			fail();
+		} catch (RestBackupException e) {
+		}
+		setListing("[{\"name\":\"/f\"},{\"name\":");
+		Iterator<FileDetails> files = _caller.listIterator();
+		assertEquals("/f", files.next().getUri());
+		try {
+			files.next();
+			fail();
+		} catch (UncheckedIOException e) {
+		}
+		try {
+			_caller.list();
+			fail();
+		} catch (RestBackupException e) {
+		}
+	}
+}
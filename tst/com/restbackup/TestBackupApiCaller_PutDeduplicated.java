@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_PutDeduplicated {
+	private static final int SIZE = 8 * 1024 * 1024;
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _indexPath;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_indexPath = Files.createTempFile("chunk-index", ".txt");
+		Files.delete(_indexPath);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(_indexPath);
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] insert(byte[] data, int offset, byte[] inserted) {
+		byte[] result = new byte[data.length + inserted.length];
+		System.arraycopy(data, 0, result, 0, offset);
+		System.arraycopy(inserted, 0, result, offset, inserted.length);
+		System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+		return result;
+	}
+
+	@Test
+	public void testChunkerBoundariesFollowContent() throws Exception {
+		byte[] data = randomBytes(SIZE);
+		List<Integer> before = chunkSizes(data);
+		List<Integer> after = chunkSizes(insert(data, SIZE / 2, new byte[] { 1, 2, 3 }));
+		assertTrue(before.size() > 3);
+		int unchanged = 0;
+		for (Integer size : before) {
+			if (after.contains(size)) {
+				unchanged++;
+			}
+		}
+		assertTrue(unchanged >= before.size() - 2);
+		for (int i = 0; i < before.size() - 1; i++) {
+			assertTrue(before.get(i) >= ContentDefinedChunker.DEFAULT_MIN_SIZE);
+			assertTrue(before.get(i) <= ContentDefinedChunker.DEFAULT_MAX_SIZE);
+		}
+	}
+
+	private static List<Integer> chunkSizes(byte[] data) throws Exception {
+		ContentDefinedChunker chunker = new ContentDefinedChunker(new ByteArrayInputStream(data));
+		List<Integer> sizes = new ArrayList<Integer>();
+		int total = 0;
+		byte[] chunk;
+		while ((chunk = chunker.next()) != null) {
+			sizes.add(chunk.length);
+			total += chunk.length;
+		}
+		assertEquals(data.length, total);
+		return sizes;
+	}
+
+	@Test
+	public void testPutDeduplicatedAndGet() throws Exception {
+		byte[] data = randomBytes(SIZE);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		ChunkIndex index = new ChunkIndex(_indexPath, 30);
+		caller.putDeduplicated("/file", new ByteArrayEntity(data), index);
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.get("/file")));
+		assertEquals(_store.getFiles().size() - 1, index.size());
+		index.close();
+	}
+
+	@Test
+	public void testOnlyChangedChunksAreUploaded() throws Exception {
+		byte[] data = randomBytes(SIZE);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		ChunkIndex index = new ChunkIndex(_indexPath, 30);
+		caller.putDeduplicated("/night1", new ByteArrayEntity(data), index);
+		index.close();
+
+		index = new ChunkIndex(_indexPath, 30); // reloaded from the file
+		int putCount = _store.getPutCount();
+		byte[] changed = insert(data, SIZE / 3, "inserted".getBytes("UTF-8"));
+		caller.putDeduplicated("/night2", new ByteArrayEntity(changed), index);
+		assertTrue(_store.getPutCount() - putCount <= 3); // new chunks and the recipe
+		assertArrayEquals(changed, EntityUtils.toByteArray(caller.get("/night2")));
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.get("/night1")));
+		index.close();
+	}
+
+	@Test
+	public void testExistingChunkIsNotAnError() throws Exception {
+		byte[] data = randomBytes(SIZE / 4);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		ChunkIndex index = new ChunkIndex(_indexPath, 30);
+		caller.putDeduplicated("/first", new ByteArrayEntity(data), index);
+		index.close();
+		Files.delete(_indexPath); // forget what was uploaded
+		index = new ChunkIndex(_indexPath, 30);
+		caller.putDeduplicated("/second", new ByteArrayEntity(data), index);
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.get("/second")));
+		assertTrue(index.size() > 0);
+		index.close();
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_PutLarge {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	@Test
+	public void testPutLargeAndGet() throws Exception {
+		Path path = TestUtils.makeTempFile(100000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/large", path, 30000, 3);
+		assertEquals(5, _store.getFiles().size()); // 4 parts and the manifest
+		HttpEntity entity = caller.get("/large");
+		assertEquals(100000, entity.getContentLength());
+		assertArrayEquals(Files.readAllBytes(path), EntityUtils.toByteArray(entity));
+	}
+
+	@Test
+	public void testPutLargeEmptyFile() throws Exception {
+		Path path = TestUtils.makeTempFile(0);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/empty", path, 30000, 3);
+		assertEquals(1, _store.getFiles().size());
+		assertEquals(0, EntityUtils.toByteArray(caller.get("/empty")).length);
+	}
+
+	@Test
+	public void testGetOrdinaryFile() throws Exception {
+		_store.getFiles().put("/small", "abc".getBytes("UTF-8"));
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		assertEquals("abc", EntityUtils.toString(caller.get("/small")));
+	}
+
+	@Test
+	public void testManifestIsStoredBesideTheUri() throws Exception {
+		Path path = TestUtils.makeTempFile(100000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/large", path, 30000, 3);
+		assertFalse(_store.getFiles().containsKey("/large"));
+		assertTrue(_store.getFiles().containsKey("/large" + MultipartManifest.URI_SUFFIX));
+		HttpEntity entity = caller.getAsync("/large").get();
+		assertArrayEquals(Files.readAllBytes(path), EntityUtils.toByteArray(entity));
+	}
+
+	@Test
+	public void testFileThatLooksLikeManifestIsReturnedAsIs() throws Exception {
+		Path path = TestUtils.makeTempFile(100000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/large", path, 30000, 3);
+		byte[] manifest = _store.getFiles().get("/large" + MultipartManifest.URI_SUFFIX);
+		_store.getFiles().put("/export.json", manifest);
+		assertArrayEquals(manifest, EntityUtils.toByteArray(caller.get("/export.json")));
+		assertArrayEquals(manifest, EntityUtils.toByteArray(caller.getAsync("/export.json")
+				.get()));
+		Path target = Files.createTempFile("restbackup-test", ".out");
+		target.toFile().deleteOnExit();
+		assertEquals(manifest.length, caller.getToPath("/export.json", target, 2));
+		assertArrayEquals(manifest, Files.readAllBytes(target));
+	}
+
+	@Test
+	public void testGetMissingFile() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		try {
+			caller.get("/missing");
+			fail();
+		} catch (ResourceNotFoundException e) {
+		}
+		try {
+			caller.getAsync("/missing").get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ResourceNotFoundException);
+		}
+	}
+
+	@Test
+	public void testFailedPartIsRetriedAlone() throws Exception {
+		Path path = TestUtils.makeTempFile(100000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		String uri = "/retried";
+		_store.failNext(uri + ".part-", 1);
+		caller.putLarge(uri, path, 50000, 1);
+		assertEquals(3, _store.getFiles().size());
+		assertEquals(4, _store.getPutCount()); // 2 parts, 1 retried part, manifest
+		assertArrayEquals(Files.readAllBytes(path), EntityUtils.toByteArray(caller.get(uri)));
+	}
+}
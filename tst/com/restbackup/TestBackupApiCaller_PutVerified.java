@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_PutVerified {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testDigestingEntity() throws Exception {
+		DigestingEntity entity = new DigestingEntity(new ByteArrayEntity("abc".getBytes("UTF-8")));
+		assertNull(entity.getDigest());
+		EntityUtils.toByteArray(entity);
+		assertEquals(new ContentDigest(
+				"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", 0x352441c2L, 3),
+				entity.getDigest());
+	}
+
+	@Test
+	public void testDigestSurvivesRepeatedEndOfStream() throws Exception {
+		DigestingEntity entity = new DigestingEntity(new ByteArrayEntity("abc".getBytes("UTF-8")));
+		InputStream input = entity.getContent();
+		while (input.read() != -1) {
+		}
+		ContentDigest digest = entity.getDigest();
+		assertEquals(-1, input.read());
+		assertEquals(-1, input.read(new byte[10], 0, 10));
+		input.close();
+		assertSame(digest, entity.getDigest());
+		assertEquals(new ContentDigest(
+				"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", 0x352441c2L, 3),
+				digest);
+	}
+
+	@Test
+	public void testContentDigestEquality() throws Exception {
+		ContentDigest digest = new ContentDigest("ab", 1, 2);
+		assertEquals(digest, new ContentDigest("ab", 1, 2));
+		assertEquals(digest.hashCode(), new ContentDigest("ab", 1, 2).hashCode());
+		assertFalse(digest.equals(new ContentDigest("ab", 1, 3)));
+		assertFalse(digest.equals(new ContentDigest(null, 1, 2)));
+		assertFalse(digest.equals(digest.toString()));
+		assertEquals(new ContentDigest(), new ContentDigest());
+	}
+
+	@Test
+	public void testPutVerifiedAndGet() throws Exception {
+		byte[] data = randomBytes(300000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putVerified("/file", new ByteArrayEntity(data));
+		assertEquals(2, _store.getFiles().size());
+		assertEquals(data.length, caller.getContentDigest("/file").getSize());
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.getVerified("/file")));
+	}
+
+	@Test
+	public void testRetriedStreamHasCorrectDigest() throws Exception {
+		byte[] data = randomBytes(300000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		_store.failNext("/streamed", 1);
+		caller.putVerified("/streamed", new InputStreamEntity(new ByteArrayInputStream(data),
+				data.length));
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.getVerified("/streamed")));
+	}
+
+	@Test
+	public void testModifiedFileFails() throws Exception {
+		byte[] data = randomBytes(300000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putVerified("/file", new ByteArrayEntity(data));
+		_store.getFiles().get("/file")[1234] ^= 1;
+		HttpEntity entity = caller.getVerified("/file");
+		try {
+			EntityUtils.toByteArray(entity);
+			fail();
+		} catch (DigestMismatchException e) {
+		}
+	}
+
+	@Test(expected = DigestMismatchException.class)
+	public void testWrongSizeFailsBeforeReading() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putVerified("/file", new ByteArrayEntity(randomBytes(1000)));
+		_store.getFiles().put("/file", randomBytes(999));
+		caller.getVerified("/file");
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBackupApiCaller_RestoreAll {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _target;
+	private List<FileDetails> _files = new ArrayList<FileDetails>();
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_target = Files.createTempDirectory("restore");
+		for (int i = 0; i < 30; i++) {
+			String uri = "/dir" + (i % 3) + "/file" + i;
+			byte[] data = new byte[100 * i];
+			Arrays.fill(data, (byte) i);
+			_store.getFiles().put(uri, data);
+			_files.add(new FileDetails(uri, data.length, 0, 0));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.walkFileTree(_target, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testRestoreAll() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		BulkResult result = caller.restoreAll(_files, _target);
+		assertTrue(result.isSuccess());
+		assertEquals(30, result.getSucceeded().size());
+		assertEquals(100 * 29 * 30 / 2, result.getBytes());
+		assertArrayEquals(_store.getFiles().get("/dir2/file14"), Files.readAllBytes(_target
+				.resolve("dir2/file14")));
+	}
+
+	@Test
+	public void testPriorityOrder() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		List<String> needed = Arrays.asList("/dir1/file4", "/dir0/file3");
+		BulkResult result = caller.restoreAll(_files, _target, 1, RestoreOrder.priorityFirst(
+				needed, RestoreOrder.SMALLEST_FIRST));
+		List<String> restored = result.getSucceeded();
+		assertEquals(needed, restored.subList(0, 2));
+		assertEquals("/dir0/file0", restored.get(2));
+		assertEquals("/dir2/file29", restored.get(29));
+	}
+
+	@Test
+	public void testFailuresDoNotStopBatch() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		List<FileDetails> files = new ArrayList<FileDetails>(_files);
+		files.add(new FileDetails("/missing", 10, 0, 0));
+		files.add(new FileDetails("/dir0/../../escape", 10, 0, 0));
+		files.add(new FileDetails("/dir0/file3", 5, 0, 0)); // wrong size
+		BulkResult result = caller.restoreAll(files, _target, 4, RestoreOrder.LARGEST_FIRST);
+		assertEquals(3, result.getFailures().size());
+		assertEquals(30, result.getSucceeded().size());
+		assertFalse(Files.exists(_target.resolveSibling("escape")));
+		DirectoryStream<Path> temps = Files.newDirectoryStream(_target.resolve("dir0"), "*.tmp");
+		assertFalse(temps.iterator().hasNext());
+		temps.close();
+	}
+
+	@Test
+	public void testRestoresLargeAndDeduplicatedFiles() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		Path large = TestUtils.makeTempFile(100000);
+		caller.putLarge("/dir0/large", large, 30000, 2);
+		byte[] data = Files.readAllBytes(TestUtils.makeTempFile(300000));
+		Path indexPath = Files.createTempFile("chunk-index", ".txt");
+		Files.delete(indexPath);
+		ChunkIndex index = new ChunkIndex(indexPath, 30);
+		try {
+			caller.putDeduplicated("/dedup", new ByteArrayEntity(data), index);
+		} finally {
+			index.close();
+			Files.deleteIfExists(indexPath);
+		}
+		List<FileDetails> listing = new ArrayList<FileDetails>();
+		for (Map.Entry<String, byte[]> entry : _store.getFiles().entrySet()) {
+			listing.add(new FileDetails(entry.getKey(), entry.getValue().length, 0, 0));
+		}
+		BulkResult result = caller.restoreAll(listing, _target);
+		assertTrue(result.getFailures().toString(), result.isSuccess());
+		assertEquals(32, result.getSucceeded().size());
+		assertArrayEquals(Files.readAllBytes(large), Files.readAllBytes(_target
+				.resolve("dir0/large")));
+		assertArrayEquals(data, Files.readAllBytes(_target.resolve("dedup")));
+		assertFalse(Files.exists(_target.resolve("chunks")));
+		DirectoryStream<Path> internal = Files.newDirectoryStream(_target.resolve("dir0"),
+				"large?*");
+		assertFalse(internal.iterator().hasNext());
+		internal.close();
+	}
+
+	@Test
+	public void testSkipsDigestsOfVerifiedFiles() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putVerified("/verified", new ByteArrayEntity(new byte[1000]));
+		_store.getFiles().put("/notes.sha256", new byte[10]); // no file at /notes
+		List<FileDetails> listing = new ArrayList<FileDetails>();
+		for (Map.Entry<String, byte[]> entry : _store.getFiles().entrySet()) {
+			listing.add(new FileDetails(entry.getKey(), entry.getValue().length, 0, 0));
+		}
+		BulkResult result = caller.restoreAll(listing, _target);
+		assertTrue(result.getFailures().toString(), result.isSuccess());
+		assertEquals(32, result.getSucceeded().size());
+		assertEquals(1000, Files.size(_target.resolve("verified")));
+		assertFalse(Files.exists(_target.resolve("verified.sha256")));
+		assertTrue(Files.exists(_target.resolve("notes.sha256")));
+	}
+
+	@Test
+	public void testLargeFileOfWrongSizeFails() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.putLarge("/large", TestUtils.makeTempFile(100000), 30000, 2);
+		List<FileDetails> files = new ArrayList<FileDetails>();
+		files.add(new FileDetails("/large", 5, 0, 0)); // the manifest size wins
+		_store.getFiles().put("/large.part-0-00000", new byte[0]);
+		files.add(new FileDetails("/large.part-0-00000", 0, 0, 0));
+		BulkResult result = caller.restoreAll(files, _target);
+		assertTrue(result.isSuccess());
+		assertEquals(Arrays.asList("/large"), result.getSucceeded());
+		assertEquals(100000, Files.size(_target.resolve("large")));
+		_store.getFiles().put("/truncated.restbackup-manifest", _store.getFiles().get(
+				"/large.restbackup-manifest"));
+		for (String uri : new ArrayList<String>(_store.getFiles().keySet())) {
+			if (uri.startsWith("/large.part-") && uri.endsWith("-00001")) {
+				_store.getFiles().put(uri, new byte[10]);
+			}
+		}
+		files.clear();
+		files.add(new FileDetails("/truncated.restbackup-manifest", 100, 0, 0));
+		result = caller.restoreAll(files, _target);
+		assertEquals(1, result.getFailures().size());
+		assertTrue(result.getFailures().containsKey("/truncated"));
+		assertFalse(Files.exists(_target.resolve("truncated")));
+	}
+}
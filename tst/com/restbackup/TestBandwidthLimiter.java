@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class TestBandwidthLimiter {
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	@Test
+	public void testUnlimitedDoesNotWait() throws Exception {
+		BandwidthLimiter limiter = new BandwidthLimiter();
+		assertTrue(limiter.isUnlimited());
+		long start = System.nanoTime();
+		limiter.acquire(1L << 40);
+		assertTrue(elapsedMillis(start) < 100);
+	}
+
+	@Test
+	public void testLimitsRateAfterBurst() throws Exception {
+		BandwidthLimiter limiter = new BandwidthLimiter(1000000);
+		limiter.setBurstMillis(0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire(50000);
+		}
+		long elapsed = elapsedMillis(start);
+		assertTrue("elapsed " + elapsed, elapsed >= 450 && elapsed < 1500);
+	}
+
+	@Test
+	public void testRateSharedByThreads() throws Exception {
+		final BandwidthLimiter limiter = new BandwidthLimiter(1000000);
+		limiter.setBurstMillis(0);
+		Thread[] threads = new Thread[4];
+		long start = System.nanoTime();
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 5; j++) {
+							limiter.acquire(25000);
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = elapsedMillis(start);
+		assertTrue("elapsed " + elapsed, elapsed >= 450 && elapsed < 1500);
+	}
+
+	@Test
+	public void testRateChangeAppliesToNextPiece() throws Exception {
+		BandwidthLimiter limiter = new BandwidthLimiter(1000);
+		limiter.setBurstMillis(0);
+		limiter.setBytesPerSecond(0);
+		long start = System.nanoTime();
+		limiter.acquire(1000000);
+		assertTrue(elapsedMillis(start) < 100);
+	}
+
+	@Test
+	public void testThrottledEntityCopiesData() throws Exception {
+		byte[] data = randomBytes(BandwidthLimiter.MAX_CHUNK * 2 + 17);
+		BandwidthLimiter limiter = new BandwidthLimiter(100L * 1024 * 1024);
+		ThrottledEntity entity = new ThrottledEntity(new ByteArrayEntity(data), limiter);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertArrayEquals(data, out.toByteArray());
+		assertArrayEquals(data, EntityUtils.toByteArray(entity));
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestBundle {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private List<Path> _files = new ArrayList<Path>();
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		for (int i = 0; i < 100; i++) {
+			_files.add(TestUtils.makeTempFile(2000 + 180 * i));
+		}
+		_files.add(TestUtils.makeTempFile(0));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Path file : _files) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testWriteAndReadMembers() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		BundleWriter writer = new BundleWriter(caller, "/mail", 500000);
+		for (int i = 0; i < _files.size(); i++) {
+			writer.add("msg" + i, _files.get(i));
+		}
+		writer.close();
+		Map<String, String> locations = writer.getLocations();
+		assertEquals(_files.size(), locations.size());
+		int bundles = new HashSet<String>(locations.values()).size();
+		assertEquals(3, bundles);
+		assertEquals(bundles, _store.getPutCount());
+
+		for (int i : new int[] { 0, 57, 99, 100 }) {
+			int getCount = _store.getGetCount();
+			Bundle bundle = Bundle.open(caller, locations.get("msg" + i));
+			assertTrue(bundle.getNames().contains("msg" + i));
+			byte[] data = EntityUtils.toByteArray(bundle.get("msg" + i));
+			assertArrayEquals(Files.readAllBytes(_files.get(i)), data);
+			assertTrue(_store.getGetCount() - getCount <= 3); // footer, index, member
+		}
+	}
+
+	@Test
+	public void testMissingMember() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		BundleWriter writer = new BundleWriter(caller, "");
+		writer.add("only", _files.get(0));
+		writer.close();
+		Bundle bundle = Bundle.open(caller, writer.getLocations().get("only"));
+		assertNull(bundle.getMember("other"));
+		try {
+			bundle.get("other");
+			fail();
+		} catch (RestBackupException e) {
+		}
+	}
+
+	@Test(expected = RestBackupException.class)
+	public void testNotABundle() throws Exception {
+		_store.getFiles().put("/plain", "just some data in a file".getBytes("UTF-8"));
+		Bundle.open(new BackupApiCaller(_server.getUrl()), "/plain");
+	}
+}
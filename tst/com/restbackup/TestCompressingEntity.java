@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class TestCompressingEntity {
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private static byte[] textBytes(int size) {
+		byte[] data = new byte[size];
+		Random random = new Random(size);
+		String words = "the quick brown fox jumps over the lazy dog ";
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) words.charAt((i + random.nextInt(3)) % words.length());
+		}
+		return data;
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] compress(byte[] data) throws IOException {
+		HttpEntity entity = new CompressingEntity(new ByteArrayEntity(data),
+				Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE,
+				BlockPipelineInputStream.getDefaultExecutor(), 3);
+		return EntityUtils.toByteArray(entity);
+	}
+
+	private static byte[] decompress(byte[] data) throws IOException {
+		return EntityUtils.toByteArray(new DecompressingEntity(new ByteArrayEntity(data)));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] data = textBytes(10 * BLOCK_SIZE + 123);
+		byte[] compressed = compress(data);
+		assertTrue(compressed.length < data.length / 2);
+		assertArrayEquals(data, decompress(compressed));
+	}
+
+	@Test
+	public void testIncompressibleBlocksAreStored() throws Exception {
+		byte[] data = randomBytes(4 * BLOCK_SIZE);
+		assertTrue(CompressingEntity.sampleEntropy(data) > 7.9);
+		assertTrue(CompressingEntity.sampleEntropy(textBytes(BLOCK_SIZE)) < 5);
+		byte[] compressed = compress(data);
+		assertTrue(compressed.length < data.length + 4 * 64);
+		assertArrayEquals(data, decompress(compressed));
+	}
+
+	@Test
+	public void testReadableByGzip() throws Exception {
+		byte[] data = textBytes(3 * BLOCK_SIZE + 7);
+		InputStream input = new GZIPInputStream(new ByteArrayInputStream(compress(data)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int bytesRead;
+		while ((bytesRead = input.read(buffer)) != -1) {
+			out.write(buffer, 0, bytesRead);
+		}
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void testUncompressedPassesThrough() throws Exception {
+		byte[] data = textBytes(1000);
+		assertArrayEquals(data, decompress(data));
+		assertArrayEquals(new byte[0], decompress(new byte[0]));
+		assertArrayEquals(new byte[0], decompress(compress(new byte[0])));
+	}
+
+	@Test
+	public void testUncompressedFailsWithoutPassThrough() throws Exception {
+		byte[] data = textBytes(1000);
+		try {
+			EntityUtils.toByteArray(new DecompressingEntity(new ByteArrayEntity(data), false));
+			fail();
+		} catch (IOException e) {
+		}
+		byte[] compressed = compress(data);
+		assertArrayEquals(data, EntityUtils.toByteArray(new DecompressingEntity(
+				new ByteArrayEntity(compressed), false)));
+		assertArrayEquals(new byte[0], EntityUtils.toByteArray(new DecompressingEntity(
+				new ByteArrayEntity(compress(new byte[0])), false)));
+	}
+
+	@Test
+	public void testCorruptMemberFails() throws Exception {
+		byte[] compressed = compress(textBytes(2 * BLOCK_SIZE));
+		compressed[compressed.length - 20] ^= 0x55;
+		try {
+			decompress(compressed);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testOversizedMemberIsRefused() throws Exception {
+		byte[] member = GzipMember.compress(textBytes(100), Deflater.BEST_SPEED);
+		byte[] claimsHugeData = member.clone();
+		claimsHugeData[23] = 0x7f; // data size
+		try {
+			GzipMember.decompress(claimsHugeData);
+			fail();
+		} catch (IOException e) {
+		}
+		byte[] claimsHugeMember = member.clone();
+		claimsHugeMember[19] = 0x7f; // member size
+		try {
+			GzipMember.read(new ByteArrayInputStream(claimsHugeMember));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testBadArgumentsAreRefused() throws Exception {
+		HttpEntity entity = new ByteArrayEntity(new byte[1]);
+		ExecutorService executor = BlockPipelineInputStream.getDefaultExecutor();
+		int[][] levelsAndBlockSizes = { { 0, BLOCK_SIZE }, { 10, BLOCK_SIZE }, { -2, BLOCK_SIZE },
+				{ 1, 0 }, { 1, CompressingEntity.MAX_BLOCK_SIZE + 1 } };
+		for (int[] args : levelsAndBlockSizes) {
+			try {
+				new CompressingEntity(entity, args[0], args[1], executor, 2);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		new CompressingEntity(entity, Deflater.DEFAULT_COMPRESSION, BLOCK_SIZE, executor, 2);
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConcurrencyLimiter {
+	private ConcurrencyLimiter _limiter;
+
+	@Before
+	public void setUp() {
+		_limiter = new ConcurrencyLimiter();
+		_limiter.setEnabled(true);
+	}
+
+	/**
+	 * Runs count requests at once that all succeed, returning the limit
+	 */
+	private int succeedTogether(int count, boolean sampleLatency) throws Exception {
+		long[] starts = new long[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = _limiter.acquire();
+		}
+		for (int i = 0; i < count; i++) {
+			_limiter.onSuccess(starts[i], sampleLatency);
+		}
+		return _limiter.getLimit();
+	}
+
+	@Test
+	public void testGrowsWhileLatencyIsFlat() throws Exception {
+		int limit = ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT;
+		for (int i = 0; i < 20; i++) {
+			limit = succeedTogether(limit, false);
+		}
+		assertTrue("limit " + limit, limit >= ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT + 5);
+		assertEquals(0, _limiter.getInFlight());
+	}
+
+	@Test
+	public void testDoesNotGrowWhenIdle() throws Exception {
+		for (int i = 0; i < 200; i++) {
+			succeedTogether(1, false);
+		}
+		assertEquals(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, _limiter.getLimit());
+	}
+
+	@Test
+	public void testBurstOfFailuresCutsOnce() throws Exception {
+		long[] starts = new long[5];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = _limiter.acquire();
+		}
+		for (int i = 0; i < starts.length; i++) {
+			_limiter.onDropped(starts[i]);
+		}
+		assertEquals(7, _limiter.getLimit()); // 10 * 0.75
+		_limiter.onDropped(_limiter.acquire());
+		assertEquals(5, _limiter.getLimit()); // 7.5 * 0.75
+		assertEquals(0, _limiter.getInFlight());
+	}
+
+	@Test
+	public void testCutsWhenLatencyRises() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			succeedTogether(1, true);
+		}
+		int before = _limiter.getLimit();
+		long start = _limiter.acquire();
+		Thread.sleep(50);
+		_limiter.onSuccess(start, true);
+		assertTrue(_limiter.getLimit() < before);
+	}
+
+	@Test
+	public void testIgnoredKeepsLimit() throws Exception {
+		_limiter.acquire();
+		_limiter.onIgnored();
+		assertEquals(ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT, _limiter.getLimit());
+		assertEquals(0, _limiter.getInFlight());
+	}
+
+	@Test
+	public void testWaitsForPermit() throws Exception {
+		_limiter.setLimitRange(1, 1);
+		long start = _limiter.acquire();
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					_limiter.acquire();
+					acquired.countDown();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		waiter.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		_limiter.onSuccess(start, false);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiter.join();
+	}
+
+	@Test
+	public void testDisabledDoesNotWait() throws Exception {
+		_limiter.setEnabled(false);
+		_limiter.setLimitRange(1, 1);
+		for (int i = 0; i < 5; i++) {
+			_limiter.acquire();
+		}
+		assertEquals(5, _limiter.getInFlight());
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestEncryptingEntity {
+	private static final int SEGMENT_SIZE = 4096;
+	private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] encrypt(byte[] data) throws IOException {
+		HttpEntity entity = new EncryptingEntity(new ByteArrayEntity(data), KEY, SEGMENT_SIZE,
+				BlockPipelineInputStream.getDefaultExecutor(), 3);
+		byte[] encrypted = EntityUtils.toByteArray(entity);
+		assertEquals(entity.getContentLength(), encrypted.length);
+		return encrypted;
+	}
+
+	private static byte[] decrypt(byte[] data) throws IOException {
+		return EntityUtils.toByteArray(new DecryptingEntity(new ByteArrayEntity(data), KEY));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		for (int size : new int[] { 0, 1, SEGMENT_SIZE, 10 * SEGMENT_SIZE + 17 }) {
+			byte[] data = randomBytes(size);
+			assertArrayEquals(data, decrypt(encrypt(data)));
+		}
+	}
+
+	@Test
+	public void testEachUploadUsesNewKey() throws Exception {
+		byte[] data = randomBytes(100);
+		assertFalse(Arrays.equals(encrypt(data), encrypt(data)));
+	}
+
+	@Test
+	public void testModifiedSegmentFails() throws Exception {
+		byte[] encrypted = encrypt(randomBytes(5 * SEGMENT_SIZE));
+		encrypted[encrypted.length / 2] ^= 1;
+		try {
+			decrypt(encrypted);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testTruncatedAtSegmentBoundaryFails() throws Exception {
+		byte[] encrypted = encrypt(randomBytes(5 * SEGMENT_SIZE));
+		SegmentCipher cipher = SegmentCipher.open(KEY, encrypted);
+		int truncatedLength = (int) cipher.getCiphertextOffset(3);
+		try {
+			decrypt(Arrays.copyOf(encrypted, truncatedLength));
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			decrypt(Arrays.copyOf(encrypted, SegmentCipher.HEADER_LENGTH));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testTamperedSegmentSizeFails() throws Exception {
+		byte[] encrypted = encrypt(randomBytes(100));
+		int[] sizes = { Integer.MAX_VALUE, Integer.MAX_VALUE - SegmentCipher.TAG_LENGTH + 1,
+				SegmentCipher.MAX_SEGMENT_SIZE + 1, 0, -1 };
+		for (int size : sizes) {
+			byte[] tampered = encrypted.clone();
+			ByteBuffer.wrap(tampered, 4, 4).putInt(size);
+			assertFalse(SegmentCipher.isHeader(tampered));
+			try {
+				decrypt(tampered);
+				fail();
+			} catch (IOException e) {
+			}
+		}
+		try {
+			SegmentCipher.create(KEY, SegmentCipher.MAX_SEGMENT_SIZE + 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testWrongKeyFails() throws Exception {
+		byte[] encrypted = encrypt(randomBytes(100));
+		SecretKey otherKey = new SecretKeySpec(new byte[32], "AES");
+		try {
+			EntityUtils.toByteArray(new DecryptingEntity(new ByteArrayEntity(encrypted), otherKey));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testPutAndGetSegmentByRange() throws Exception {
+		byte[] data = randomBytes(7 * SEGMENT_SIZE + 100);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.put("/encrypted", new EncryptingEntity(new ByteArrayEntity(data), KEY,
+				SEGMENT_SIZE, BlockPipelineInputStream.getDefaultExecutor(), 4));
+		assertArrayEquals(data, EntityUtils.toByteArray(new DecryptingEntity(caller
+				.get("/encrypted"), KEY)));
+
+		long fileSize = _store.getFiles().get("/encrypted").length;
+		byte[] header = EntityUtils.toByteArray(caller.getRange("/encrypted", 0,
+				SegmentCipher.HEADER_LENGTH));
+		SegmentCipher cipher = SegmentCipher.open(KEY, header);
+		assertEquals(8, cipher.getSegmentCount(fileSize));
+		assertEquals(data.length, cipher.getPlaintextSize(fileSize));
+		for (int i : new int[] { 3, 7 }) {
+			HttpEntity range = caller.getRange("/encrypted", cipher.getCiphertextOffset(i),
+					SEGMENT_SIZE + SegmentCipher.TAG_LENGTH);
+			byte[] plaintext = cipher.decrypt(EntityUtils.toByteArray(range), i, i == 7);
+			int start = i * SEGMENT_SIZE;
+			assertArrayEquals(Arrays.copyOfRange(data, start, Math.min(data.length, start
+					+ SEGMENT_SIZE)), plaintext);
+		}
+	}
+}
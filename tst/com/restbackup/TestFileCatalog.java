@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestFileCatalog {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _dir;
+	private FileCatalog _catalog;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_dir = Files.createTempDirectory("catalog");
+		_catalog = FileCatalog.open(_dir);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_catalog.close();
+		for (Path file : Files.newDirectoryStream(_dir)) {
+			Files.delete(file);
+		}
+		Files.delete(_dir);
+	}
+
+	private static List<String> uris(List<FileCatalog.Entry> entries) {
+		List<String> result = new ArrayList<String>();
+		for (FileCatalog.Entry entry : entries) {
+			result.add(entry.getAccount() + entry.getUri());
+		}
+		return result;
+	}
+
+	private void recordSample() throws IOException {
+		_catalog.record("/acct2", new FileDetails("/b", 1, 300, 900));
+		_catalog.record("/acct1", new FileDetails("/z", 2, 100, 900));
+		_catalog.record("/acct1", new FileDetails("/a", 3, 200, 900));
+		_catalog.record("/acct10", new FileDetails("/a", 4, 150, 900));
+		_catalog.record("/acct1", new FileDetails("/a", 5, 250, 900)); // a new version
+	}
+
+	private void checkSample() {
+		assertEquals(5, _catalog.size());
+		assertEquals(Arrays.asList("/acct1/a", "/acct1/a", "/acct1/z"),
+				uris(_catalog.list("/acct1")));
+		List<FileCatalog.Entry> versions = _catalog.get("/acct1", "/a");
+		assertEquals(2, versions.size());
+		assertEquals(new FileCatalog.Entry("/acct1", "/a", 3, 200, 900), versions.get(0));
+		assertEquals(5, versions.get(1).getSize());
+		assertTrue(_catalog.get("/acct1", "/b").isEmpty());
+		assertTrue(_catalog.list("/acct").isEmpty());
+		assertEquals(Arrays.asList("/acct10/a", "/acct1/a", "/acct1/a"), uris(_catalog
+				.findCreatedBetween(150, 300)));
+		assertEquals(Arrays.asList("/acct1/a", "/acct1/a"), uris(_catalog.findCreatedBetween(
+				"/acct1", 150, 300)));
+		assertEquals(new FileDetails("/b", 1, 300, 900), _catalog.findCreatedBetween(300, 301)
+				.get(0).toFileDetails());
+	}
+
+	@Test
+	public void testLookupsBeforeAndAfterMerge() throws Exception {
+		recordSample();
+		checkSample();
+		_catalog.flush();
+		checkSample();
+		_catalog.record("/acct1", new FileDetails("/m", 6, 175, 900));
+		_catalog.record("/acct1", new FileDetails("/a", 7, 50, 900));
+		assertEquals(Arrays.asList("/acct1/a", "/acct1/a", "/acct1/a", "/acct1/m", "/acct1/z"),
+				uris(_catalog.list("/acct1")));
+		assertEquals(Arrays.asList(3L, 5L, 7L), sizes(_catalog.get("/acct1", "/a")));
+		assertEquals(Arrays.asList(2L, 4L, 6L, 3L), sizes(_catalog.findCreatedBetween(100, 250)));
+		_catalog.flush();
+		assertEquals(Arrays.asList(3L, 5L, 7L), sizes(_catalog.get("/acct1", "/a")));
+		assertEquals(Arrays.asList(2L, 4L, 6L, 3L), sizes(_catalog.findCreatedBetween(100, 250)));
+	}
+
+	private static List<Long> sizes(List<FileCatalog.Entry> entries) {
+		List<Long> result = new ArrayList<Long>();
+		for (FileCatalog.Entry entry : entries) {
+			result.add(entry.getSize());
+		}
+		return result;
+	}
+
+	@Test
+	public void testDuplicatesAreSkipped() throws Exception {
+		recordSample();
+		assertFalse(_catalog.record("/acct1", new FileDetails("/a", 3, 200, 900)));
+		_catalog.flush();
+		assertFalse(_catalog.record("/acct1", new FileDetails("/a", 3, 200, 900)));
+		assertEquals(1, _catalog.recordAll("/acct1", Arrays.asList(new FileDetails("/z", 2, 100,
+				900), new FileDetails("/a", 5, 250, 900), new FileDetails("/a", 5, 250, 901))));
+		assertEquals(6, _catalog.size());
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		recordSample();
+		_catalog.flush();
+		_catalog.record("/acct3", new FileDetails("/unicode-\u00e9\ud83d\ude00", 8, 400, 900));
+		_catalog.close();
+		_catalog.close();
+		try {
+			_catalog.list("/acct1");
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		_catalog = FileCatalog.open(_dir);
+		checkSample2();
+	}
+
+	private void checkSample2() {
+		assertEquals(6, _catalog.size());
+		assertEquals(Arrays.asList("/acct3/unicode-\u00e9\ud83d\ude00"),
+				uris(_catalog.list("/acct3")));
+		assertEquals(5, _catalog.list("/acct1").get(1).getSize());
+	}
+
+	@Test
+	public void testRecoverUnindexedEntriesAndPartialRecord() throws Exception {
+		recordSample();
+		_catalog.flush();
+		_catalog.record("/acct3", new FileDetails("/unicode-\u00e9\ud83d\ude00", 8, 400, 900));
+		// simulate a crash: copy the files while the catalog is open
+		Path copy = Files.createTempDirectory("catalog-copy");
+		try {
+			Files.copy(_dir.resolve("catalog.idx"), copy.resolve("catalog.idx"));
+			Files.copy(_dir.resolve("catalog.log"), copy.resolve("catalog.log"));
+			FileChannel log = FileChannel.open(copy.resolve("catalog.log"),
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			log.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 60, 1, 2, 3 }));
+			log.close();
+			long size = Files.size(copy.resolve("catalog.log"));
+			FileCatalog recovered = FileCatalog.open(copy);
+			try {
+				assertEquals(6, recovered.size());
+				assertEquals(size - 7, Files.size(copy.resolve("catalog.log")));
+				assertEquals(1, recovered.list("/acct3").size());
+				assertEquals(2, recovered.get("/acct1", "/a").size());
+			} finally {
+				recovered.close();
+			}
+		} finally {
+			for (Path file : Files.newDirectoryStream(copy)) {
+				Files.delete(file);
+			}
+			Files.delete(copy);
+		}
+	}
+
+	@Test
+	public void testOpenTwiceFails() throws Exception {
+		try {
+			FileCatalog.open(_dir);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testAutomaticMerge() throws Exception {
+		_catalog.setMergeThreshold(100);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int n = 0; n < 2000; n++) {
+			order.add(n);
+		}
+		Collections.shuffle(order, new Random(1));
+		for (int n : order) {
+			_catalog.record("/acct" + (n % 10), new FileDetails(String.format("/f%04d", n), n,
+					n, 0));
+		}
+		assertTrue(Files.exists(_dir.resolve("catalog.idx")));
+		assertEquals(2000, _catalog.size());
+		List<FileCatalog.Entry> acct7 = _catalog.list("/acct7");
+		assertEquals(200, acct7.size());
+		for (int i = 0; i < acct7.size(); i++) {
+			assertEquals(String.format("/f%04d", i * 10 + 7), acct7.get(i).getUri());
+		}
+		List<FileCatalog.Entry> created = _catalog.findCreatedBetween(500, 1500);
+		assertEquals(1000, created.size());
+		for (int i = 0; i < created.size(); i++) {
+			assertEquals(500 + i, created.get(i).getCreateTimeSec());
+		}
+		assertEquals(1234, _catalog.get("/acct4", "/f1234").get(0).getSize());
+	}
+
+	@Test
+	public void testBadNames() throws Exception {
+		try {
+			_catalog.record("a\0b", new FileDetails("/a", 1, 1, 1));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		char[] longName = new char[70000];
+		Arrays.fill(longName, 'x');
+		try {
+			_catalog.get("/acct", new String(longName));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testBackupApiCallerRecordsListAndPut() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setCatalog(_catalog, "/acct1");
+		String json = "[{\"name\":\"/file1\",\"size\":5,\"createtime\":1,\"deletetime\":2}]";
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+		caller.list();
+		caller.list();
+		caller.put("/file2", new StringEntity("data2"));
+		assertEquals(2, _catalog.size());
+		assertEquals(new FileDetails("/file1", 5, 1, 2), _catalog.get("/acct1", "/file1").get(0)
+				.toFileDetails());
+		assertEquals(5, _catalog.get("/acct1", "/file2").get(0).getSize());
+		caller.setCatalog(null, null);
+		caller.put("/file3", new StringEntity("data3"));
+		assertEquals(2, _catalog.size());
+	}
+
+	@Test
+	public void testBackupApiCallerSkipsUnrecordableUploads() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setCatalog(_catalog, "/acct1");
+		caller.put("/unknown-size", new InputStreamEntity(new ByteArrayInputStream(new byte[7]),
+				-1));
+		char[] name = new char[FileCatalog.MAX_NAME_LENGTH + 1];
+		Arrays.fill(name, 'a');
+		name[0] = '/';
+		caller.put(new String(name), new StringEntity("data")); // logged, not thrown
+		assertEquals(0, _catalog.size());
+	}
+}
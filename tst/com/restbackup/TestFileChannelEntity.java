@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestFileChannelEntity {
+	private static final int FILE_SIZE = 2 * FileChannelEntity.CHUNK_SIZE + 1234;
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _path;
+	private byte[] _data;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+		_server.setDefaultHandler(_store);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_store.clear();
+		_data = new byte[FILE_SIZE];
+		new Random(FILE_SIZE).nextBytes(_data);
+		_path = Files.createTempFile("restbackup-test", ".bin");
+		Files.write(_path, _data);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(_path);
+	}
+
+	private byte[] slice(long offset, long length) {
+		return Arrays.copyOfRange(_data, (int) offset, (int) (offset + length));
+	}
+
+	/**
+	 * Writes the entity to a plain stream, a FileOutputStream and a channel
+	 * and checks that all three and getContent() give the expected bytes
+	 */
+	private void assertWritesEverywhere(byte[] expected, FileChannelEntity entity)
+			throws IOException {
+		assertEquals(expected.length, entity.getContentLength());
+		assertArrayEquals(expected, EntityUtils.toByteArray(entity));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		entity.writeTo(stream);
+		assertArrayEquals(expected, stream.toByteArray());
+
+		Path copy = Files.createTempFile("restbackup-test", ".out");
+		try {
+			FileOutputStream fileStream = new FileOutputStream(copy.toFile());
+			try {
+				entity.writeTo(fileStream); // transferTo() into the file channel
+			} finally {
+				fileStream.close();
+			}
+			assertArrayEquals(expected, Files.readAllBytes(copy));
+		} finally {
+			Files.delete(copy);
+		}
+
+		ByteArrayOutputStream channelStream = new ByteArrayOutputStream();
+		entity.writeTo(Channels.newChannel(channelStream));
+		assertArrayEquals(expected, channelStream.toByteArray());
+	}
+
+	@Test
+	public void testWholeFile() throws Exception {
+		FileChannelEntity entity = new FileChannelEntity(_path);
+		assertEquals(0, entity.getOffset());
+		assertSame(_path, entity.getPath());
+		assertTrue(entity.isRepeatable());
+		assertFalse(entity.isStreaming());
+		assertWritesEverywhere(_data, entity);
+	}
+
+	@Test
+	public void testSlices() throws Exception {
+		int chunk = FileChannelEntity.CHUNK_SIZE;
+		long[][] slices = { { 0, 0 }, { 0, 1 }, { 17, 100 }, { chunk - 10, 20 },
+				{ 1, 2 * chunk }, { FILE_SIZE - 1234, 1234 }, { FILE_SIZE, 0 } };
+		for (long[] slice : slices) {
+			FileChannelEntity entity = new FileChannelEntity(_path, slice[0], slice[1]);
+			assertEquals(slice[0], entity.getOffset());
+			assertWritesEverywhere(slice(slice[0], slice[1]), entity);
+		}
+	}
+
+	@Test
+	public void testRepeatable() throws Exception {
+		FileChannelEntity entity = new FileChannelEntity(_path, 5, FILE_SIZE - 10);
+		byte[] expected = slice(5, FILE_SIZE - 10);
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			entity.writeTo(out);
+			assertArrayEquals(expected, out.toByteArray());
+			assertArrayEquals(expected, EntityUtils.toByteArray(entity));
+		}
+	}
+
+	@Test
+	public void testPutSlice() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.put("/slice", new FileChannelEntity(_path, 1000, FileChannelEntity.CHUNK_SIZE));
+		assertArrayEquals(slice(1000, FileChannelEntity.CHUNK_SIZE), _store.getFiles().get(
+				"/slice"));
+	}
+
+	@Test
+	public void testFileShorterThanSliceFails() throws Exception {
+		FileChannelEntity entity = new FileChannelEntity(_path, FILE_SIZE - 10, 20);
+		try {
+			EntityUtils.toByteArray(entity);
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			entity.writeTo(new ByteArrayOutputStream());
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			entity.writeTo(Channels.newChannel(new ByteArrayOutputStream()));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testBadArguments() throws Exception {
+		long[][] arguments = { { -1, 10 }, { 0, -1 } };
+		for (long[] args : arguments) {
+			try {
+				new FileChannelEntity(_path, args[0], args[1]);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		try {
+			new FileChannelEntity(null, 0, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestFileInventory {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	@Test
+	public void testFileDetailsEquality() throws Exception {
+		FileDetails a = new FileDetails("/a", 1, 2, 3);
+		assertEquals(a, new FileDetails("/a", 1, 2, 3));
+		assertEquals(a.hashCode(), new FileDetails("/a", 1, 2, 3).hashCode());
+		assertFalse(a.equals(new FileDetails("/b", 1, 2, 3)));
+		assertFalse(a.equals(new FileDetails("/a", 9, 2, 3)));
+		assertFalse(a.equals(new FileDetails("/a", 1, 9, 3)));
+		assertFalse(a.equals(new FileDetails("/a", 1, 2, 9)));
+		assertFalse(a.equals(null));
+		assertFalse(a.equals(a.toString()));
+		assertEquals(new FileDetails(null, 1, 2, 3), new FileDetails(null, 1, 2, 3));
+		assertEquals(2000, a.getCreateTime().getTime());
+		assertEquals(3, a.getDeleteTimeSec());
+		Set<FileDetails> set = new HashSet<FileDetails>();
+		set.add(a);
+		set.add(new FileDetails("/a", 1, 2, 3));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	public void testAddAndGet() throws Exception {
+		FileInventory inventory = new FileInventory(0);
+		for (int n = 0; n < 1000; n++) {
+			inventory.add("/file-\u00e9\u4e2d\ud83d\ude00-" + n, n, 100 + n, 200 + n);
+		}
+		assertEquals(1000, inventory.size());
+		assertEquals("/file-\u00e9\u4e2d\ud83d\ude00-999", inventory.getUri(999));
+		assertEquals(999, inventory.getSize(999));
+		assertEquals(1099, inventory.getCreateTimeSec(999));
+		assertEquals(1199, inventory.getDeleteTimeSec(999));
+		assertEquals(new FileDetails("/file-\u00e9\u4e2d\ud83d\ude00-5", 5, 105, 205),
+				inventory.get(5));
+		assertEquals(999 * 1000 / 2, inventory.getTotalSize());
+		try {
+			inventory.getSize(1000);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testSortAndIndexOf() throws Exception {
+		List<String> uris = new ArrayList<String>();
+		for (int n = 0; n < 5000; n++) {
+			uris.add("/dir" + (n % 7) + "/file" + n);
+		}
+		uris.add("/\u00ff");
+		uris.add("/\u0100");
+		uris.add("/\ud83d\ude00"); // sorts after U+FFEE, unlike in UTF-16
+		uris.add("/\uffee");
+		Collections.shuffle(uris, new Random(1));
+		FileInventory inventory = new FileInventory();
+		for (String uri : uris) {
+			inventory.add(uri, uri.length(), 0, 0);
+		}
+		for (String uri : uris) {
+			int index = inventory.indexOf(uri);
+			assertEquals(uri, inventory.getUri(index));
+			assertEquals(uri.length(), inventory.getSize(index));
+		}
+		assertEquals(-1, inventory.indexOf("/missing"));
+		assertEquals(-1, inventory.indexOf("/dir0/file"));
+		assertFalse(inventory.contains(""));
+		for (int n = 1; n < inventory.size(); n++) {
+			assertTrue(Arrays.compareUnsigned(inventory.getUri(n - 1).getBytes("UTF-8"), inventory
+					.getUri(n).getBytes("UTF-8")) < 0);
+		}
+		assertEquals("/\uffee", inventory.getUri(inventory.size() - 2));
+		assertEquals("/\ud83d\ude00", inventory.getUri(inventory.size() - 1));
+	}
+
+	@Test
+	public void testSortIsStable() throws Exception {
+		FileInventory inventory = new FileInventory();
+		inventory.add("/b", 1, 0, 0);
+		inventory.add("/a", 2, 0, 0);
+		inventory.add("/b", 3, 0, 0);
+		inventory.add("/a", 4, 0, 0);
+		inventory.sort();
+		long[] sizes = new long[4];
+		for (int n = 0; n < 4; n++) {
+			sizes[n] = inventory.getSize(n);
+		}
+		assertArrayEquals(new long[] { 2, 4, 1, 3 }, sizes);
+		assertEquals(0, inventory.indexOf("/a"));
+		assertEquals(2, inventory.indexOf("/b"));
+	}
+
+	@Test
+	public void testRemoveDuplicates() throws Exception {
+		FileInventory inventory = new FileInventory();
+		for (int n = 0; n < 3; n++) {
+			inventory.add("/c", 1, 2, 3);
+			inventory.add("/a", 1, 2, 3);
+			inventory.add("/a", 1, 2, 4); // another version
+		}
+		assertEquals(6, inventory.removeDuplicates());
+		List<FileDetails> files = new ArrayList<FileDetails>();
+		for (FileDetails file : inventory) {
+			files.add(file);
+		}
+		assertEquals(Arrays.asList(new FileDetails("/a", 1, 2, 3), new FileDetails("/a", 1, 2, 4),
+				new FileDetails("/c", 1, 2, 3)), files);
+		inventory.add("/b", 0, 0, 0);
+		assertEquals(2, inventory.indexOf("/b"));
+	}
+
+	@Test
+	public void testListInventory() throws Exception {
+		StringBuilder json = new StringBuilder("[");
+		for (int n = 999; n >= 0; n--) {
+			json.append("{\"name\":\"/file" + n + "\",\"size\":" + n
+					+ ",\"createtime\":1,\"deletetime\":2}");
+			json.append(n > 0 ? "," : "]");
+		}
+		_store.getFiles().put("/", json.toString().getBytes("UTF-8"));
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		FileInventory inventory = caller.listInventory();
+		assertEquals(1000, inventory.size());
+		assertEquals("/file999", inventory.getUri(0));
+		assertEquals(0, inventory.removeDuplicates());
+		assertEquals(123, inventory.getSize(inventory.indexOf("/file123")));
+		assertEquals("/file0", inventory.getUri(0));
+	}
+}
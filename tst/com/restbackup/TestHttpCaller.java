@@ -11,12 +11,9 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
@@ -137,16 +134,12 @@ public class TestHttpCaller {
 		assertEquals(443, caller.getPort());
 		assertEquals(accessUrl, caller.getAccessUrl());
 
-		@SuppressWarnings("unchecked")
-		Collection<Header> headersList = (Collection<Header>) caller._httpClient.getParams()
-				.getParameter(ClientPNames.DEFAULT_HEADERS);
-		Map<String, Header> headers = new HashMap<String, Header>();
-		for (Header header : headersList) {
-			assertFalse(headers.containsKey(header.getName()));
-			headers.put(header.getName(), header);
-		}
-		assertNotNull(headers.get("Authorization"));
-		assertEquals("Basic VVNFUjpQQVNT", headers.get("Authorization").getValue());
+		assertEquals("Authorization", caller._authorization.getName());
+		assertEquals("Basic VVNFUjpQQVNT", caller._authorization.getValue());
+		assertEquals(new HttpHost("host", 443, "https"), caller._endpoint);
+		// sent with each request, so the client can be shared
+		assertNull(caller._httpClient.getParams().getParameter(ClientPNames.DEFAULT_HEADERS));
+		assertNull(caller._httpClient.getParams().getParameter(ClientPNames.DEFAULT_HOST));
 	}
 
 	@Test
@@ -334,6 +327,10 @@ public class TestHttpCaller {
 						HttpGet request = (HttpGet) args[0];
 						assertEquals(1, request.getHeaders("name").length);
 						assertEquals("value", request.getHeaders("name")[0].getValue());
+						assertEquals("Basic dTpw", request.getFirstHeader("Authorization")
+								.getValue());
+						assertEquals(new HttpHost("h", 443, "https"), request.getParams()
+								.getParameter(ClientPNames.DEFAULT_HOST));
 						// HttpClient mock = (HttpClient) invocation.getMock();
 						return TestUtils.fakeResponse(200, "body");
 					}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestIncrementalBackup {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private Path _root;
+	private Path _indexPath;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_root = Files.createTempDirectory("incremental");
+		Files.createDirectories(_root.resolve("dir/sub"));
+		Files.write(_root.resolve("a.txt"), "aaa".getBytes("UTF-8"));
+		Files.write(_root.resolve("dir/b file.txt"), "bbbb".getBytes("UTF-8"));
+		Files.write(_root.resolve("dir/sub/c.txt"), "ccccc".getBytes("UTF-8"));
+		_indexPath = Files.createTempFile("state", ".idx");
+		Files.delete(_indexPath);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Files.deleteIfExists(_indexPath);
+	}
+
+	@Test
+	public void testOnlyChangedFilesAreUploaded() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		IncrementalBackup backup = new IncrementalBackup(caller, _indexPath, 30);
+		IncrementalBackup.Summary summary = backup.run(_root, "/nightly");
+		assertEquals(3, summary.getUploadedFiles());
+		assertEquals(12, summary.getUploadedBytes());
+		assertEquals(3, _store.getFiles().size());
+
+		summary = backup.run(_root, "/nightly");
+		assertEquals(0, summary.getUploadedFiles());
+		assertEquals(3, summary.getUnchangedFiles());
+
+		Path changed = _root.resolve("dir/b file.txt");
+		Files.write(changed, "changed".getBytes("UTF-8"));
+		Files.setLastModifiedTime(changed, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+		Files.delete(_root.resolve("a.txt"));
+		summary = backup.run(_root, "/nightly");
+		assertEquals(1, summary.getUploadedFiles());
+		assertEquals(1, summary.getUnchangedFiles());
+		assertEquals(1, summary.getRemovedFiles());
+
+		String uri = backup.getUri("/nightly", "dir/b file.txt");
+		assertEquals("changed", EntityUtils.toString(caller.get(uri)));
+		assertNull(backup.getUri("/nightly", "a.txt"));
+	}
+
+	@Test
+	public void testFailedRunKeepsProgress() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setMaxRequestAttempts(1);
+		IncrementalBackup backup = new IncrementalBackup(caller, _indexPath, 30);
+		_store.failNext("/nightly/dir/b%20file.txt", 1);
+		try {
+			backup.run(_root, "/nightly");
+			fail();
+		} catch (RestBackupException e) {
+		}
+		int uploaded = _store.getFiles().size();
+		IncrementalBackup.Summary summary = backup.run(_root, "/nightly");
+		assertEquals(3 - uploaded, summary.getUploadedFiles());
+		assertEquals(uploaded, summary.getUnchangedFiles());
+	}
+
+	@Test
+	public void testLargeIndex() throws Exception {
+		List<FileStateIndex.Entry> entries = new ArrayList<FileStateIndex.Entry>();
+		for (int i = 0; i < 100000; i++) {
+			entries.add(new FileStateIndex.Entry("file" + i, i, 2 * i, 3 * i, 4 * i, new byte[32]));
+		}
+		FileStateIndex.write(_indexPath, entries);
+		FileStateIndex index = FileStateIndex.open(_indexPath);
+		assertEquals(100000, index.size());
+		for (int i = 0; i < 100000; i += 997) {
+			FileStateIndex.Entry entry = index.get("file" + i);
+			assertTrue(entry.matches(i, 2 * i, 3 * i));
+			assertEquals(4 * i, entry.getUploadTimeMillis());
+		}
+		assertNull(index.get("missing"));
+	}
+
+	@Test
+	public void testWriterMergesSpilledRunsWithBase() throws Exception {
+		List<FileStateIndex.Entry> entries = new ArrayList<FileStateIndex.Entry>();
+		for (int i = 0; i < 1000; i++) {
+			entries.add(new FileStateIndex.Entry("file" + i, i, 0, 0, 1, new byte[32]));
+		}
+		FileStateIndex.write(_indexPath, entries);
+		FileStateIndex base = FileStateIndex.open(_indexPath);
+		FileStateIndex.Writer writer = new FileStateIndex.Writer(_indexPath, 100);
+		try {
+			for (int i = 500; i < 1500; i++) {
+				writer.add(new FileStateIndex.Entry("file" + i, i, 0, 0, 2, new byte[32]));
+			}
+			writer.add(new FileStateIndex.Entry("file600", 600, 0, 0, 3, new byte[32]));
+			writer.commit(base);
+		} finally {
+			writer.close();
+		}
+		DirectoryStream<Path> runs = Files.newDirectoryStream(_indexPath.getParent(), _indexPath
+				.getFileName() + ".*.run");
+		assertFalse(runs.iterator().hasNext());
+		runs.close();
+		FileStateIndex index = FileStateIndex.open(_indexPath);
+		assertEquals(1500, index.size());
+		assertEquals(1, index.get("file0").getUploadTimeMillis());
+		assertEquals(1, index.get("file499").getUploadTimeMillis());
+		assertEquals(2, index.get("file500").getUploadTimeMillis());
+		assertEquals(3, index.get("file600").getUploadTimeMillis());
+		assertEquals(2, index.get("file1499").getUploadTimeMillis());
+		assertTrue(index.get("file1499").matches(1499, 0, 0));
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestListingCache {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private ExecutorService _executor;
+	private ListingCache _cache;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_executor = Executors.newCachedThreadPool();
+		_cache = new ListingCache();
+		_cache.setTtl(1, TimeUnit.HOURS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Returns a listing with one file named after the number of calls so far
+	 */
+	private static class CountingFetch implements Callable<Collection<FileDetails>> {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile CountDownLatch release = new CountDownLatch(0);
+		volatile boolean fail = false;
+
+		@Override
+		public Collection<FileDetails> call() throws Exception {
+			int n = calls.incrementAndGet();
+			release.await();
+			if (fail) {
+				throw new RestBackupException("fetch failed");
+			}
+			return Arrays.asList(new FileDetails("/fetch" + n, n, 0, 0));
+		}
+	}
+
+	private static List<String> uris(Collection<FileDetails> files) {
+		List<String> result = new ArrayList<String>();
+		for (FileDetails file : files) {
+			result.add(file.getUri());
+		}
+		return result;
+	}
+
+	@Test
+	public void testDisabledFetchesEveryTime() throws Exception {
+		_cache.setTtl(0, TimeUnit.SECONDS);
+		CountingFetch fetch = new CountingFetch();
+		assertEquals(Arrays.asList("/fetch1"), uris(_cache.get(fetch, _executor)));
+		assertEquals(Arrays.asList("/fetch2"), uris(_cache.get(fetch, _executor)));
+		_cache.insert(new FileDetails("/new", 1, 0, 0));
+		assertEquals(Arrays.asList("/fetch3"), uris(_cache.get(fetch, _executor)));
+	}
+
+	@Test
+	public void testFreshListingIsReused() throws Exception {
+		CountingFetch fetch = new CountingFetch();
+		for (int n = 0; n < 10; n++) {
+			assertEquals(Arrays.asList("/fetch1"), uris(_cache.get(fetch, _executor)));
+		}
+		assertEquals(1, fetch.calls.get());
+	}
+
+	@Test
+	public void testConcurrentCallsShareOneFetch() throws Exception {
+		final CountingFetch fetch = new CountingFetch();
+		fetch.release = new CountDownLatch(1);
+		List<Future<Collection<FileDetails>>> results =
+				new ArrayList<Future<Collection<FileDetails>>>();
+		for (int n = 0; n < 20; n++) {
+			results.add(_executor.submit(new Callable<Collection<FileDetails>>() {
+				@Override
+				public Collection<FileDetails> call() throws Exception {
+					return _cache.get(fetch, _executor);
+				}
+			}));
+		}
+		Thread.sleep(200);
+		fetch.release.countDown();
+		for (Future<Collection<FileDetails>> result : results) {
+			assertEquals(Arrays.asList("/fetch1"), uris(result.get(10, TimeUnit.SECONDS)));
+		}
+		assertEquals(1, fetch.calls.get());
+	}
+
+	@Test
+	public void testStaleListingIsServedWhileRefreshing() throws Exception {
+		_cache.setTtl(50, TimeUnit.MILLISECONDS);
+		CountingFetch fetch = new CountingFetch();
+		assertEquals(Arrays.asList("/fetch1"), uris(_cache.get(fetch, _executor)));
+		Thread.sleep(100);
+		fetch.release = new CountDownLatch(1);
+		for (int n = 0; n < 5; n++) { // stale, one refresh starts
+			assertEquals(Arrays.asList("/fetch1"), uris(_cache.get(fetch, _executor)));
+		}
+		fetch.release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!uris(_cache.get(fetch, _executor)).equals(Arrays.asList("/fetch2"))) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals(2, fetch.calls.get());
+	}
+
+	@Test
+	public void testFailedRefreshKeepsStaleListing() throws Exception {
+		_cache.setTtl(50, TimeUnit.MILLISECONDS);
+		CountingFetch fetch = new CountingFetch();
+		_cache.get(fetch, _executor);
+		Thread.sleep(100);
+		fetch.fail = true;
+		for (int n = 0; n < 3; n++) {
+			assertEquals(Arrays.asList("/fetch1"), uris(_cache.get(fetch, _executor)));
+			Thread.sleep(50);
+		}
+		assertTrue(fetch.calls.get() > 1);
+	}
+
+	@Test
+	public void testFailedFirstFetchThrows() throws Exception {
+		CountingFetch fetch = new CountingFetch();
+		fetch.fail = true;
+		try {
+			_cache.get(fetch, _executor);
+			fail();
+		} catch (RestBackupException e) {
+			assertEquals("fetch failed", e.getMessage());
+		}
+		fetch.fail = false;
+		assertEquals(Arrays.asList("/fetch2"), uris(_cache.get(fetch, _executor)));
+	}
+
+	@Test
+	public void testInsertAndInvalidate() throws Exception {
+		CountingFetch fetch = new CountingFetch();
+		_cache.get(fetch, _executor);
+		_cache.insert(new FileDetails("/new", 1, 0, 0));
+		_cache.insert(new FileDetails("/fetch1", 2, 0, 0));
+		Collection<FileDetails> files = _cache.get(fetch, _executor);
+		assertEquals(Arrays.asList("/new", "/fetch1"), uris(files));
+		assertEquals(2, files.toArray(new FileDetails[0])[1].getSize());
+		_cache.invalidate();
+		assertEquals(Arrays.asList("/fetch2"), uris(_cache.get(fetch, _executor)));
+	}
+
+	@Test
+	public void testBackupApiCallerListAndPut() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.getListingCache().setTtl(1, TimeUnit.HOURS);
+		String json = "[{\"name\":\"/file1\",\"size\":5,\"createtime\":1,\"deletetime\":2}]";
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+		assertEquals(Arrays.asList("/file1"), uris(caller.list()));
+		int gets = _store.getGetCount();
+		caller.put("/file2", new StringEntity("data2"));
+		caller.putAsync("/file3", new StringEntity("data3")).get(10, TimeUnit.SECONDS);
+		Collection<FileDetails> files = caller.list();
+		assertEquals(Arrays.asList("/file1", "/file2", "/file3"), uris(files));
+		assertEquals(5, files.toArray(new FileDetails[0])[1].getSize());
+		assertEquals(gets, _store.getGetCount());
+		// the streaming variants always fetch
+		assertTrue(caller.listIterator().hasNext());
+		assertEquals(gets + 1, _store.getGetCount());
+	}
+
+	@Test
+	public void testPutOfUnknownSizeRefetches() throws Exception {
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.getListingCache().setTtl(1, TimeUnit.HOURS);
+		String json = "[{\"name\":\"/file1\",\"size\":5,\"createtime\":1,\"deletetime\":2}]";
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+		caller.list();
+		int gets = _store.getGetCount();
+		caller.put("/file2", new InputStreamEntity(new ByteArrayInputStream(new byte[7]), -1));
+		for (FileDetails file : caller.list()) {
+			assertTrue(file.getSize() >= 0);
+		}
+		assertEquals(gets + 1, _store.getGetCount());
+	}
+}
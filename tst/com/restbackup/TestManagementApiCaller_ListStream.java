@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestManagementApiCaller_ListStream {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+	private ManagementApiCaller _caller;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+		_caller = new ManagementApiCaller(_server.getUrl());
+	}
+
+	private void setListing(String json) throws Exception {
+		_store.getFiles().put("/", json.getBytes("UTF-8"));
+	}
+
+	private static String makeListing(int count) {
+		StringBuilder json = new StringBuilder("[");
+		for (int n = 0; n < count; n++) {
+			if (n > 0) {
+				json.append(",");
+			}
+			json.append("{\"account\":\"/acct" + n + "\",\"description\":\"Customer " + n
+					+ "\",\"retaindays\":" + (n % 365) + ",\"access-url\":null}");
+		}
+		return json.append("]").toString();
+	}
+
+	@Test
+	public void testListBackupAccountsIterator() throws Exception {
+		setListing(makeListing(10000));
+		JsonArrayIterator<BackupAccount> accounts = _caller.listBackupAccountsIterator();
+		for (int n = 0; n < 10000; n++) {
+			assertTrue(accounts.hasNext());
+			BackupAccount account = accounts.next();
+			assertEquals(new BackupAccount("/acct" + n, "Customer " + n, n % 365), account);
+		}
+		assertFalse(accounts.hasNext());
+	}
+
+	@Test
+	public void testNullsAndUnknownFields() throws Exception {
+		setListing("[{\"x\":[{},1.5,true],\"account\":\"/a\",\"description\":null,"
+				+ "\"retaindays\":null}]");
+		Iterator<BackupAccount> accounts = _caller.listBackupAccountsIterator();
+		BackupAccount account = accounts.next();
+		assertEquals("/a", account.getAccountId());
+		assertNull(account.getDescription());
+		assertEquals(-1, account.getRetainUploadsDays());
+		assertFalse(accounts.hasNext());
+	}
+
+	@Test
+	public void testListBackupAccounts() throws Exception {
+		setListing(makeListing(3));
+		Collection<BackupAccount> accounts = _caller.listBackupAccounts();
+		assertEquals(3, accounts.size());
+		assertEquals(new BackupAccount("/acct2", "Customer 2", 2),
+				accounts.toArray(new BackupAccount[0])[2]);
+	}
+
+	@Test
+	public void testStreamCloseEarly() throws Exception {
+		setListing(makeListing(500));
+		for (int n = 0; n < 5; n++) {
+			try (Stream<BackupAccount> accounts = _caller.listBackupAccountsStream()) {
+				assertEquals("/acct0", accounts.findFirst().get().getAccountId());
+			}
+		}
+		try (Stream<BackupAccount> accounts = _caller.listBackupAccountsStream()) {
+			assertEquals(500, accounts.count());
+		}
+	}
+
+	@Test
+	public void testMalformedListing() throws Exception {
+		setListing("[{\"account\":\"/a\"},{\"account\"");
+		try {
+			_caller.listBackupAccounts();
+			fail();
+		} catch (RestBackupException e) {
+		}
+		setListing("\"not a list\"");
+		try {
+			_caller.listBackupAccountsIterator();
+			fail();
+		} catch (RestBackupException e) {
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestResumingInputStream {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		_server.reset();
+		_store.clear();
+		_server.setDefaultHandler(_store);
+	}
+
+	@Test
+	public void testGetResumesAfterDisconnect() throws Exception {
+		byte[] data = Files.readAllBytes(TestUtils.makeTempFile(100000));
+		_store.getFiles().put("/file", data);
+		_store.truncateNext("/file", 2, 30000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		assertArrayEquals(data, EntityUtils.toByteArray(caller.get("/file")));
+		assertEquals(3, _store.getGetCount());
+	}
+
+	@Test(expected = RestBackupException.class)
+	public void testGetGivesUpWhenRetriesAreExhausted() throws Exception {
+		_store.getFiles().put("/file", Files.readAllBytes(TestUtils.makeTempFile(100000)));
+		_store.truncateNext("/file", 10, 0);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setMaxRequestAttempts(3);
+		EntityUtils.toByteArray(caller.get("/file"));
+	}
+
+	@Test
+	public void testRangeIsResumed() throws Exception {
+		Path source = TestUtils.makeTempFile(30000);
+		_store.getFiles().put("/file", Files.readAllBytes(source));
+		_store.truncateNext("/file", 1, 5000);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.setRangeSize(10000);
+		Path target = Files.createTempFile("restbackup-test", ".out");
+		target.toFile().deleteOnExit();
+		assertEquals(30000, caller.getToPath("/file", target, 1));
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+		assertEquals(4, _store.getGetCount());
+	}
+}
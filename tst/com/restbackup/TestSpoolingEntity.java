@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.restbackup.testingtcpserver.TestingTcpServer;
+import com.restbackup.testingtcpserver.handlers.ObjectStoreHttp11;
+
+public class TestSpoolingEntity {
+	private static TestingTcpServer _server;
+	private static ObjectStoreHttp11 _store;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		_server = new TestingTcpServer();
+		_store = new ObjectStoreHttp11();
+		_server.setDefaultHandler(_store);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		_server.shutdown();
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Throws after the specified number of bytes were written
+	 */
+	private static class FailingOutputStream extends ByteArrayOutputStream {
+		private final int _limit;
+
+		FailingOutputStream(int limit) {
+			_limit = limit;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (size() + len > _limit) {
+				throw new IllegalStateException("simulated network failure");
+			}
+			super.write(b, off, len);
+		}
+	}
+
+	private static void writeToExpectingFailure(SpoolingEntity entity, OutputStream out)
+			throws IOException {
+		try {
+			entity.writeTo(out);
+			fail("expected failure");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testReplaysAfterCompleteWrite() throws Exception {
+		byte[] data = randomBytes(300000);
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(
+				new ByteArrayInputStream(data), data.length), 1000, 4096);
+		assertTrue(entity.isRepeatable());
+		assertEquals(data.length, entity.getContentLength());
+		assertArrayEquals(data, EntityUtils.toByteArray(entity));
+		assertArrayEquals(data, EntityUtils.toByteArray(entity));
+		assertEquals(data.length, entity.getSpooledLength());
+		entity.close();
+	}
+
+	@Test
+	public void testContinuesAfterPartialWrite() throws Exception {
+		byte[] data = randomBytes(300000);
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(
+				new ByteArrayInputStream(data), -1), 1000, 4096);
+		writeToExpectingFailure(entity, new FailingOutputStream(100000));
+		writeToExpectingFailure(entity, new FailingOutputStream(200000));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertArrayEquals(data, out.toByteArray());
+		entity.close();
+	}
+
+	@Test
+	public void testMemoryOnly() throws Exception {
+		byte[] data = randomBytes(500);
+		SpoolingEntity entity = new SpoolingEntity(new InputStreamEntity(
+				new ByteArrayInputStream(data), data.length));
+		assertArrayEquals(data, EntityUtils.toByteArray(entity));
+		assertArrayEquals(data, EntityUtils.toByteArray(entity));
+		entity.close();
+	}
+
+	@Test
+	public void testRetriedPutResendsBody() throws Exception {
+		byte[] data = randomBytes(200000);
+		_store.clear();
+		_store.failNext("/piped", 2);
+		BackupApiCaller caller = new BackupApiCaller(_server.getUrl());
+		caller.put("/piped", new InputStreamEntity(new ByteArrayInputStream(data), -1));
+		assertEquals(3, _store.getPutCount());
+		assertArrayEquals(data, _store.getFiles().get("/piped"));
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 Rest Backup LLC.
+ * 
+ * Use of this software is subject to the RestBackup.com Terms of Use at
+ * http://www.restbackup.com/terms
+ */
+package com.restbackup;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestThreadMode {
+	/**
+	 * Runs tasks that sleep briefly and returns the most that ran at once
+	 */
+	private static int maxRunning(ThreadMode mode, int parallelism, int tasks) throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		ExecutorService executor = mode.newExecutor(parallelism);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < tasks; i++) {
+				final int n = i;
+				futures.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						int now = running.incrementAndGet();
+						int seen;
+						while ((seen = maxRunning.get()) < now && !maxRunning.compareAndSet(seen, now)) {
+						}
+						Thread.sleep(10);
+						running.decrementAndGet();
+						return n;
+					}
+				}));
+			}
+			for (int i = 0; i < tasks; i++) {
+				assertEquals(i, futures.get(i).get(10, TimeUnit.SECONDS).intValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		return maxRunning.get();
+	}
+
+	@Test
+	public void testPlatformBound() throws Exception {
+		assertTrue(maxRunning(ThreadMode.PLATFORM, 3, 30) <= 3);
+	}
+
+	@Test
+	public void testVirtualBound() throws Exception {
+		int max = maxRunning(ThreadMode.VIRTUAL, 3, 30);
+		assertTrue("max " + max, max <= 3 && max > 0);
+	}
+
+	@Test
+	public void testBoundedKeepsOrder() throws Exception {
+		final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+		ExecutorService executor = new ThreadMode.BoundedExecutor(Executors.newCachedThreadPool(),
+				1);
+		for (int i = 0; i < 200; i++) {
+			final int n = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					started.add(n);
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(200, started.size());
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i, started.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void testBoundedUsesFewThreads() throws Exception {
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = new ThreadMode.BoundedExecutor(Executors.newCachedThreadPool(),
+				3);
+		for (int i = 0; i < 1000; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					threads.add(Thread.currentThread());
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+		Thread.sleep(100);
+		assertEquals(3, threads.size());
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(3, threads.size());
+	}
+
+	@Test
+	public void testBoundedShutdownNowReturnsQueued() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = new ThreadMode.BoundedExecutor(Executors.newCachedThreadPool(),
+				1);
+		for (int i = 0; i < 10; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+		Thread.sleep(100);
+		assertEquals(9, executor.shutdownNow().size());
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void testBoundedRejectsAfterShutdown() throws Exception {
+		ExecutorService executor = new ThreadMode.BoundedExecutor(Executors.newCachedThreadPool(),
+				1);
+		executor.shutdown();
+		executor.execute(new Runnable() {
+			public void run() {
+			}
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadParallelism() throws Exception {
+		ThreadMode.VIRTUAL.newExecutor(0);
+	}
+}
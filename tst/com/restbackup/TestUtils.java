@@ -6,7 +6,11 @@
  */
 package com.restbackup;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
@@ -24,4 +28,17 @@ public class TestUtils {
 			throw new IllegalArgumentException(e);
 		}
 	}
+
+	/**
+	 * Creates a temporary file filled with size pseudo-random bytes. The file
+	 * is deleted when the JVM exits.
+	 */
+	public static Path makeTempFile(int size) throws IOException {
+		Path path = Files.createTempFile("restbackup-test", ".bin");
+		path.toFile().deleteOnExit();
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		Files.write(path, data);
+		return path;
+	}
 }
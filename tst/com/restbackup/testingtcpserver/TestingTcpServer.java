@@ -14,6 +14,7 @@ public class TestingTcpServer implements Runnable {
 	private final Thread _serverThread;
 	private final ConcurrentLinkedQueue<Handler> _handlerQueue = new ConcurrentLinkedQueue<Handler>();
 	private volatile int _requestCount = 0;
+	private volatile Handler _defaultHandler = null;
 
 	public TestingTcpServer() throws IOException {
 		_serverSocket = new ServerSocket(0);
@@ -43,9 +44,17 @@ public class TestingTcpServer implements Runnable {
 		return _requestCount;
 	}
 
+	/**
+	 * Sets a handler for connections that arrive when no handlers are queued
+	 */
+	public void setDefaultHandler(Handler handler) {
+		_defaultHandler = handler;
+	}
+
 	public void reset() {
 		_handlerQueue.clear();
 		_requestCount = 0;
+		_defaultHandler = null;
 	}
 
 	@Override
@@ -57,6 +66,9 @@ public class TestingTcpServer implements Runnable {
 				this._requestCount++;
 				System.out.println("Accepted connection from " + socket.getInetAddress());
 				Handler handler = this._handlerQueue.poll();
+				if (handler == null) {
+					handler = _defaultHandler;
+				}
 				if (handler == null) {
 					System.out.println("No handlers queued.  Closing connection.");
 					socket.close();
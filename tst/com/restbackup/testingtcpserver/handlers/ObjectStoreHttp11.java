@@ -0,0 +1,197 @@
+package com.restbackup.testingtcpserver.handlers;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Serves PUT and GET requests from an in-memory map of files. Handles several
+ * requests per connection and supports single "Range: bytes=" headers. May be
+ * shared by many connections.
+ */
+public class ObjectStoreHttp11 extends Handler {
+	public static final HttpVersion HTTP11 = HttpVersion.HTTP_1_1;
+	private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=([0-9]*)-([0-9]*)$");
+
+	private final ConcurrentMap<String, byte[]> _files = new ConcurrentHashMap<String, byte[]>();
+	private final ConcurrentMap<String, AtomicInteger> _failures = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> _truncations = new ConcurrentHashMap<String, AtomicInteger>();
+	private volatile int _truncateBytes = 0;
+	private final AtomicInteger _putCount = new AtomicInteger();
+	private final AtomicInteger _getCount = new AtomicInteger();
+
+	public Map<String, byte[]> getFiles() {
+		return _files;
+	}
+
+	public int getPutCount() {
+		return _putCount.get();
+	}
+
+	public int getGetCount() {
+		return _getCount.get();
+	}
+
+	/**
+	 * Makes the next requests for uris starting with the prefix fail with 503
+	 * Service Unavailable
+	 */
+	public void failNext(String uriPrefix, int times) {
+		_failures.put(uriPrefix, new AtomicInteger(times));
+	}
+
+	/**
+	 * Makes the next GET responses for uris starting with the prefix send only
+	 * the first bytes of the body and then close the connection
+	 */
+	public void truncateNext(String uriPrefix, int times, int bytes) {
+		_truncateBytes = bytes;
+		_truncations.put(uriPrefix, new AtomicInteger(times));
+	}
+
+	/**
+	 * Removes all files, counters and failures
+	 */
+	public void clear() {
+		_files.clear();
+		_failures.clear();
+		_truncations.clear();
+		_putCount.set(0);
+		_getCount.set(0);
+	}
+
+	public void handle(Socket socket) throws Exception {
+		HttpServerConnection conn = bind(socket);
+		try {
+			while (conn.isOpen()) {
+				HttpRequest request = conn.receiveRequestHeader();
+				if (request instanceof HttpEntityEnclosingRequest) {
+					if (request.containsHeader("Expect")) {
+						conn.sendResponseHeader(new BasicHttpResponse(HTTP11, 100, "Continue"));
+						conn.flush();
+					}
+					conn.receiveRequestEntity((HttpEntityEnclosingRequest) request);
+				}
+				HttpResponse response = handle(request);
+				response.setHeader("Content-Length", String.valueOf(response.getEntity()
+						.getContentLength()));
+				if (response.getStatusLine().getStatusCode() / 100 == 2
+						&& shouldTruncate(request.getRequestLine().getUri())) {
+					byte[] body = EntityUtils.toByteArray(response.getEntity());
+					int length = Math.min(_truncateBytes, body.length);
+					byte[] truncated = new byte[length];
+					System.arraycopy(body, 0, truncated, 0, length);
+					response.setEntity(new ByteArrayEntity(truncated));
+					conn.sendResponseHeader(response);
+					conn.sendResponseEntity(response);
+					conn.flush();
+					return;
+				}
+				conn.sendResponseHeader(response);
+				conn.sendResponseEntity(response);
+				conn.flush();
+			}
+		} catch (IOException e) { // client closed the connection
+		} finally {
+			conn.close();
+		}
+	}
+
+	private boolean shouldTruncate(String uri) {
+		for (Map.Entry<String, AtomicInteger> truncation : _truncations.entrySet()) {
+			if (uri.startsWith(truncation.getKey()) && truncation.getValue().getAndDecrement() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public HttpResponse handle(HttpRequest request) {
+		String method = request.getRequestLine().getMethod();
+		String uri = request.getRequestLine().getUri();
+		try {
+			if (method.equals("PUT")) {
+				_putCount.incrementAndGet();
+			} else if (method.equals("GET")) {
+				_getCount.incrementAndGet();
+			}
+			for (Map.Entry<String, AtomicInteger> failure : _failures.entrySet()) {
+				if (uri.startsWith(failure.getKey()) && failure.getValue().getAndDecrement() > 0) {
+					if (request instanceof HttpEntityEnclosingRequest) {
+						EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+					}
+					return respond(503, "Service Unavailable", new byte[0]);
+				}
+			}
+			if (method.equals("PUT")) {
+				byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request)
+						.getEntity());
+				if (_files.putIfAbsent(uri, body) != null) {
+					return respond(405, "Method Not Allowed", new byte[0]);
+				}
+				return respond(201, "Created", "created".getBytes("UTF-8"));
+			}
+			if (method.equals("GET")) {
+				byte[] body = _files.get(uri);
+				if (body == null) {
+					return respond(404, "Not Found", new byte[0]);
+				}
+				Header range = request.getFirstHeader("Range");
+				if (range == null) {
+					return respond(200, "OK", body);
+				}
+				Matcher matcher = RANGE_PATTERN.matcher(range.getValue());
+				if (!matcher.matches()) {
+					return respond(416, "Requested Range Not Satisfiable", new byte[0]);
+				}
+				int first;
+				int last;
+				if (matcher.group(1).length() == 0) { // suffix range
+					first = Math.max(0, body.length - Integer.parseInt(matcher.group(2)));
+					last = body.length - 1;
+				} else {
+					first = Integer.parseInt(matcher.group(1));
+					last = matcher.group(2).length() == 0 ? body.length - 1 : Math.min(
+							body.length - 1, Integer.parseInt(matcher.group(2)));
+				}
+				if (first >= body.length || first > last) {
+					HttpResponse response = respond(416, "Requested Range Not Satisfiable",
+							new byte[0]);
+					response.setHeader("Content-Range", "bytes */" + body.length);
+					return response;
+				}
+				byte[] part = new byte[last - first + 1];
+				System.arraycopy(body, first, part, 0, part.length);
+				HttpResponse response = respond(206, "Partial Content", part);
+				response.setHeader("Content-Range", "bytes " + first + "-" + last + "/"
+						+ body.length);
+				return response;
+			}
+			return respond(405, "Method Not Allowed", new byte[0]);
+		} catch (IOException e) {
+			return respond(500, "Internal Server Error", new byte[0]);
+		}
+	}
+
+	private static HttpResponse respond(int code, String reason, byte[] body) {
+		BasicHttpResponse response = new BasicHttpResponse(HTTP11, code, reason);
+		response.setHeader("Date", RespondHttp11.dateGen.getCurrentDate());
+		response.setEntity(new ByteArrayEntity(body));
+		return response;
+	}
+}